@@ -0,0 +1,238 @@
+package com.kmmaruf.zktjava;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+public class AttendanceExporter implements AutoCloseable {
+    /**
+     * Writes attendance records as CSV or newline-delimited JSON while they are
+     * decoded, without building Attendance objects. Output goes through one
+     * reusable buffer, and timestamps are written digit by digit from the
+     * device's packed time, so memory stays flat however many records or
+     * devices are exported. Feed it with {@link Base.ZK#exportAttendance}.
+     */
+    public enum Format {
+        CSV, NDJSON
+    }
+
+    private final WritableByteChannel channel;
+    private final Format format;
+    private final ByteBuffer buffer;
+    private String device = "";
+    private boolean headerWritten = false;
+    private long written = 0;
+
+    public AttendanceExporter(WritableByteChannel channel, Format format) {
+        this(channel, format, 64 * 1024);
+    }
+
+    public AttendanceExporter(OutputStream out, Format format) {
+        this(Channels.newChannel(out), format, 64 * 1024);
+    }
+
+    public AttendanceExporter(WritableByteChannel channel, Format format, int bufferSize) {
+        this.channel = channel;
+        this.format = format;
+        this.buffer = ByteBuffer.allocate(Math.max(bufferSize, 256));
+    }
+
+    // Label written in the device column of the following records
+    public void setDevice(String device) {
+        this.device = device;
+    }
+
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * Writes one record.
+     *
+     * @param rawTime packed device time, as stored in the attendance table
+     */
+    public void write(int uid, String userId, int rawTime, int status, int punch) throws IOException {
+        if (!headerWritten) {
+            headerWritten = true;
+            if (format == Format.CSV) {
+                ascii("device,uid,user_id,timestamp,status,punch\n");
+            }
+        }
+        if (format == Format.CSV) {
+            csv(device);
+            put((byte) ',');
+            number(uid);
+            put((byte) ',');
+            csv(userId);
+            put((byte) ',');
+            timestamp(rawTime);
+            put((byte) ',');
+            number(status);
+            put((byte) ',');
+            number(punch);
+        } else {
+            ascii("{\"device\":");
+            json(device);
+            ascii(",\"uid\":");
+            number(uid);
+            ascii(",\"user_id\":");
+            json(userId);
+            ascii(",\"timestamp\":\"");
+            timestamp(rawTime);
+            ascii("\",\"status\":");
+            number(status);
+            ascii(",\"punch\":");
+            number(punch);
+            put((byte) '}');
+        }
+        put((byte) '\n');
+        written++;
+    }
+
+    // Same packing as the device clock: seconds, minutes, hours, day-1, month-1, year-2000
+    private void timestamp(int rawTime) throws IOException {
+        long raw = Integer.toUnsignedLong(rawTime);
+        int second = (int) (raw % 60);
+        raw /= 60;
+        int minute = (int) (raw % 60);
+        raw /= 60;
+        int hour = (int) (raw % 24);
+        raw /= 24;
+        int day = (int) (raw % 31) + 1;
+        raw /= 31;
+        int month = (int) (raw % 12) + 1;
+        raw /= 12;
+        int year = (int) (raw + 2000);
+
+        room(19);
+        digits(year, 4);
+        buffer.put((byte) '-');
+        digits(month, 2);
+        buffer.put((byte) '-');
+        digits(day, 2);
+        buffer.put((byte) 'T');
+        digits(hour, 2);
+        buffer.put((byte) ':');
+        digits(minute, 2);
+        buffer.put((byte) ':');
+        digits(second, 2);
+    }
+
+    private void digits(int value, int width) {
+        int pos = buffer.position() + width;
+        for (int i = 1; i <= width; i++) {
+            buffer.put(pos - i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        buffer.position(pos);
+    }
+
+    private void number(int value) throws IOException {
+        room(11);
+        if (value < 0) {
+            buffer.put((byte) '-');
+            if (value == Integer.MIN_VALUE) {
+                ascii("2147483648");
+                return;
+            }
+            value = -value;
+        }
+        int width = 1;
+        for (int v = value; v >= 10; v /= 10) {
+            width++;
+        }
+        digits(value, width);
+    }
+
+    private void csv(String value) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            text(value, false);
+            return;
+        }
+        put((byte) '"');
+        text(value, false);
+        put((byte) '"');
+    }
+
+    private void json(String value) throws IOException {
+        put((byte) '"');
+        text(value, true);
+        put((byte) '"');
+    }
+
+    // ASCII is copied byte by byte, anything else goes through UTF-8
+    private void text(String value, boolean jsonEscape) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                if (jsonEscape) {
+                    put((byte) '\\');
+                    put((byte) '"');
+                } else {
+                    put((byte) '"');
+                    put((byte) '"');
+                }
+            } else if (jsonEscape && c == '\\') {
+                put((byte) '\\');
+                put((byte) '\\');
+            } else if (jsonEscape && c < 0x20) {
+                ascii(String.format("\\u%04x", (int) c));
+            } else if (c < 0x80) {
+                put((byte) c);
+            } else {
+                int end = i + 1;
+                if (Character.isHighSurrogate(c) && end < value.length()) {
+                    end++;
+                }
+                byte[] encoded = value.substring(i, end).getBytes(StandardCharsets.UTF_8);
+                room(encoded.length);
+                buffer.put(encoded);
+                i = end - 1;
+            }
+        }
+    }
+
+    private void ascii(String value) throws IOException {
+        room(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            buffer.put((byte) value.charAt(i));
+        }
+    }
+
+    private void put(byte b) throws IOException {
+        room(1);
+        buffer.put(b);
+    }
+
+    private void room(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // Flushes and closes the underlying channel
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
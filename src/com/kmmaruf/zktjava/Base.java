@@ -1,20 +1,29 @@
 package com.kmmaruf.zktjava;
 
+import com.kmmaruf.zktjava.exceptions.ZKDeadlineExceeded;
 import com.kmmaruf.zktjava.exceptions.ZKErrorConnection;
 import com.kmmaruf.zktjava.exceptions.ZKErrorResponse;
 import com.kmmaruf.zktjava.exceptions.ZKNetworkError;
+import com.kmmaruf.zktjava.jfr.ChunkTransferEvent;
+import com.kmmaruf.zktjava.jfr.DeviceCommandEvent;
+import com.kmmaruf.zktjava.jfr.TableReadEvent;
+import com.kmmaruf.zktjava.metrics.InMemoryMetricsRegistry;
+import com.kmmaruf.zktjava.metrics.MetricsRegistry;
 
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InterruptedIOException;
+import java.lang.System.Logger.Level;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Base {
 
@@ -22,6 +31,37 @@ public class Base {
         void onEvent(Attendance attendance);
     }
 
+    public interface ZKTask<T> {
+        T run(ZK zk) throws Exception;
+    }
+
+    // Receives records one at a time as a table is decoded
+    public interface RecordListener<T> {
+        void onRecord(T record) throws Exception;
+    }
+
+    // Packed device time: seconds, minutes, hours, day-1, month-1, year-2000 in one unsigned int
+    public static LocalDateTime decodePackedTime(long raw) {
+        int second = (int) (raw % 60);
+        raw /= 60;
+
+        int minute = (int) (raw % 60);
+        raw /= 60;
+
+        int hour = (int) (raw % 24);
+        raw /= 24;
+
+        int day = (int) (raw % 31) + 1;
+        raw /= 31;
+
+        int month = (int) (raw % 12) + 1;
+        raw /= 12;
+
+        int year = (int) (raw + 2000);
+
+        return LocalDateTime.of(year, month, day, hour, minute, second);
+    }
+
     public static <T> T safe_cast(Object val, Class<T> toType, T defaultValue) {
         try {
             if (toType == Integer.class) {
@@ -89,6 +129,59 @@ public class Base {
         return packed;
     }
 
+    /**
+     * @deprecated encodes user text with the global User.ENCODING; pass the
+     * device's charset, e.g. {@code zk.textCodec().getCharset()}
+     */
+    @Deprecated
+    public static byte[] packUserTemplates(List<Map.Entry<User, List<Finger>>> userTemplates, int userPacketSize)
+            throws ZKErrorResponse {
+        return packUserTemplates(userTemplates, userPacketSize, Charset.forName(User.ENCODING));
+    }
+
+    /**
+     * Builds the _CMD_SAVE_USERTEMPS buffer: head, user records (28 or 72 byte
+     * layout), template table and templates. Depends only on the user packet size
+     * and charset, so it can be built once and sent to many devices.
+     */
+    public static byte[] packUserTemplates(List<Map.Entry<User, List<Finger>>> userTemplates, int userPacketSize,
+            Charset charset) throws ZKErrorResponse {
+        ByteArrayOutputStream upack = new ByteArrayOutputStream();
+        ByteArrayOutputStream fpack = new ByteArrayOutputStream();
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        int fnum = 0x10;
+        int tstart = 0;
+
+        for (Map.Entry<User, List<Finger>> entry : userTemplates) {
+            User user = entry.getKey();
+            if (user == null) {
+                throw new ZKErrorResponse("Invalid user in usertemplates list");
+            }
+            List<Finger> fingers = entry.getValue() != null ? entry.getValue() : Collections.emptyList();
+            if (userPacketSize == 28) {
+                upack.writeBytes(user.repack29(charset));
+            } else {
+                upack.writeBytes(user.repack73(charset));
+            }
+            for (Finger finger : fingers) {
+                if (finger == null) {
+                    throw new ZKErrorResponse("Invalid finger template in usertemplates list");
+                }
+                byte[] tfp = finger.repack_only();
+                table.writeBytes(Struct.pack("<bHbI", 2, user.uid, fnum + finger.fid, tstart));
+                tstart += tfp.length;
+                fpack.writeBytes(tfp);
+            }
+        }
+
+        ByteArrayOutputStream packet = new ByteArrayOutputStream(12 + upack.size() + table.size() + fpack.size());
+        packet.writeBytes(Struct.pack("III", upack.size(), table.size(), fpack.size()));
+        packet.writeBytes(upack.toByteArray());
+        packet.writeBytes(table.toByteArray());
+        packet.writeBytes(fpack.toByteArray());
+        return packet.toByteArray();
+    }
+
     public class ZKHelper {
         /**
          * ZK helper class
@@ -111,28 +204,12 @@ public class Base {
         }
 
         /**
-         * Returns true if host responds to a ping request
+         * Returns true if host is reachable, probed in-process (no ping process)
          *
          * @return boolean
          */
         public boolean testPing() {
-            // Ping parameters as function of OS
-            String os = System.getProperty("os.name").toLowerCase(Locale.ROOT);
-            String pingStr = os.contains("windows") ? "-n 1" : "-c 1 -W 5";
-            String command = "ping " + pingStr + " " + ip;
-            boolean needShell = !os.contains("windows");
-
-            try {
-                ProcessBuilder builder = needShell
-                        ? new ProcessBuilder("sh", "-c", command)
-                        : new ProcessBuilder("cmd.exe", "/c", command);
-
-                Process process = builder.redirectErrorStream(true).start();
-                int exitCode = process.waitFor();
-                return exitCode == 0;
-            } catch (IOException | InterruptedException e) {
-                return false;
-            }
+            return Reachability.probe(address, 5_000);
         }
 
         /**
@@ -176,7 +253,6 @@ public class Base {
         private int sessionId = 0;
         private int replyId = DeviceConstants.USHRT_MAX - 1;
         private byte[] dataRecv = null;
-        private byte[] data = null;
 
         public boolean isConnect = false;
         public boolean isEnabled = true;
@@ -185,7 +261,18 @@ public class Base {
         public boolean ommitPing;
         public boolean verbose;
         public String encoding;
+        private TextCodec text;
         public boolean tcp;
+        public DeviceProfileCache profileCache;
+        public MetricsRegistry metrics = new InMemoryMetricsRegistry();
+        public ZKLog log;
+        private DeviceProfile profile;
+        // race CMD_CONNECT over TCP and UDP until the profile knows the faster; needs a profileCache to remember it,
+        // and opens two sessions at once, which some terminals refuse
+        public boolean raceTransports = false;
+        public int udpWindow = 0;        // UDP sub-chunk reads in flight, 0 = one request per chunk
+        public int udpSubChunk = 1024;   // bytes per UDP sub-chunk request
+        public int udpPollMillis = 300;  // quiet time before missing sub-chunks are asked for again
 
         public int users = 0;
         public int fingers = 0;
@@ -203,10 +290,16 @@ public class Base {
         public int nextUid = 1;
         public String nextUserId = "1";
         public int userPacketSize = 28; // default zk6
-        public boolean endLiveCapture = false;
+        public volatile boolean endLiveCapture = false;
         private int response; // Holds the full response payload from device or socket
-        private Object[] header; // Holds the protocol-specific header portion
         private int tcpLength;
+        private TcpFrameReader tcpReader;
+        private int eventFlags = 0;
+        private Deadline deadline = Deadline.NONE;
+        private TransferListener transferListener;
+        private CancellationToken cancellation;
+        private boolean transferWasEnabled = true; // device state when the current transfer began
+        private Multiplexer multiplexer;
 
         /**
          * Construct a new 'ZK' object.
@@ -223,7 +316,6 @@ public class Base {
         public ZK(String ip, int port, int timeout, int password,
                 boolean forceUdp, boolean ommitPing, boolean verbose, String encoding) {
 
-            User.ENCODING = encoding;
             this.ip = ip;
             this.port = port;
             this.address = new InetSocketAddress(ip, port);
@@ -250,7 +342,9 @@ public class Base {
             this.forceUdp = forceUdp;
             this.ommitPing = ommitPing;
             this.verbose = verbose;
+            this.log = new ZKLog(ZK.class.getName(), verbose ? Level.ALL : Level.OFF);
             this.encoding = encoding;
+            this.text = new TextCodec(encoding);
             this.tcp = !forceUdp;
         }
 
@@ -268,19 +362,32 @@ public class Base {
             return this.isConnect;
         }
 
-        // Socket creation logic
-        private void createSocket() {
-            try {
-                if (this.tcp) {
+        // Socket creation logic, the TCP connect doubles as the transport probe
+        private void createSocket() throws ZKNetworkError {
+            if (this.tcp) {
+                try {
                     this.tcpSocket = new Socket();
-                    this.tcpSocket.connect(this.address, this.timeout * 1000); // timeout in ms
-                } else {
+                    this.tcpSocket.setSoTimeout(this.timeout * 1000); // milliseconds
+                    this.tcpSocket.connect(this.address, this.timeout * 1000);
+                    this.tcpReader = new TcpFrameReader(this.tcpSocket.getInputStream(), 0x10000);
+                    return;
+                } catch (IOException e) {
+                    log.debug("TCP connect failed, using UDP: %s", e.getMessage());
+                    try {
+                        this.tcpSocket.close();
+                    } catch (IOException ignored) {
+                    }
+                    this.tcp = false;
+                }
+            }
+            try {
+                if (this.udpSocket == null || this.udpSocket.isClosed()) {
                     this.udpSocket = new DatagramSocket();
-                    this.udpSocket.setSoTimeout(this.timeout * 1000);
                 }
-            } catch (IOException e) {
-                // Handle connection failure
+                this.udpSocket.setSoTimeout(this.timeout * 1000);
+            } catch (SocketException e) {
                 this.udpSocket = null;
+                throw new ZKNetworkError("Can't create UDP socket: " + e.getMessage());
             }
         }
 
@@ -338,97 +445,119 @@ public class Base {
             return Struct.pack("H", checksum);
         }
 
-        // Tests TCP top header and returns payload size
-        private int testTcpTop(byte[] packet) {
-            if (packet.length <= 8)
-                return 0;
+        public Response sendCommand(int command) throws Exception {
+            return sendCommand(command, new byte[0], 8);
+        }
 
-            Object[] unpackedPacket = Struct.unpack("<HHI", Arrays.copyOfRange(packet, 0, 8));
+        public Response sendCommand(int command, byte[] commandString) throws Exception {
+            return sendCommand(command, commandString, 8);
+        }
 
-            if (((int) unpackedPacket[0]) == DeviceConstants.MACHINE_PREPARE_DATA_1 &&
-                    ((int) unpackedPacket[1]) == DeviceConstants.MACHINE_PREPARE_DATA_2) {
-                return (int) unpackedPacket[2];
+        // Sends command to the terminal
+        public Response sendCommand(int command, byte[] commandString, int responseSize)
+                throws ZKErrorResponse, ZKErrorConnection, ZKNetworkError {
+            DeviceCommandEvent event = new DeviceCommandEvent();
+            event.begin();
+            Response result = null;
+            try {
+                result = doSendCommand(command, commandString, responseSize);
+                return result;
+            } finally {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.device = deviceName();
+                    event.command = command;
+                    event.commandName = DeviceConstants.commandName(command);
+                    event.bytesSent = commandString.length + (this.tcp ? 16 : 8);
+                    if (result != null) {
+                        event.responseCode = this.response;
+                        event.success = result.status;
+                        event.bytesReceived = this.dataRecv == null ? 0 : this.dataRecv.length;
+                    }
+                    event.commit();
+                }
             }
-            return 0;
         }
 
-        public Map<String, Object> sendCommand(int command) throws Exception {
-            return sendCommand(command, new byte[0], 8);
+        /**
+         * Codec for the text fields of this session. Follows {@link #encoding}, so
+         * devices with different charsets can be used side by side.
+         */
+        public TextCodec textCodec() {
+            if (text == null || !text.getName().equals(encoding)) {
+                text = new TextCodec(encoding);
+            }
+            return text;
         }
 
-        public Map<String, Object> sendCommand(int command, byte[] commandString) throws Exception {
-            return sendCommand(command, commandString, 8);
+        // ip:port label used by diagnostics
+        private String deviceName() {
+            return this.ip + ":" + this.port;
         }
 
-        // Sends command to the terminal
-        public Map<String, Object> sendCommand(int command, byte[] commandString, int responseSize)
+        private Response doSendCommand(int command, byte[] commandString, int responseSize)
                 throws ZKErrorResponse, ZKErrorConnection, ZKNetworkError {
             if ((command != DeviceConstants.CMD_CONNECT && command != DeviceConstants.CMD_AUTH) && !this.isConnect) {
                 throw new ZKErrorConnection("Instance is not connected.");
             }
+            if (this.multiplexer != null) {
+                throw new ZKErrorConnection("Session is multiplexed, close the multiplexer first.");
+            }
 
+            long started = System.nanoTime();
             byte[] buf = createHeader(command, commandString, this.sessionId, this.replyId);
+            applyDeadline(this.timeout * 1000);
             try {
                 if (this.tcp) {
                     byte[] top = createTcpTop(buf);
                     DataOutputStream dos = new DataOutputStream(this.tcpSocket.getOutputStream());
                     dos.write(top);
                     dos.flush();
+                    this.metrics.bytesSent(top.length);
 
-                    // byte[] tcpDataRecv = new byte[responseSize + 8];
-                    // this.tcpSocket.getInputStream().read(tcpDataRecv);
-
-                    DataInputStream inputStream = new DataInputStream(this.tcpSocket.getInputStream());
-                    int maxBytes = responseSize + 8;
-
-                    byte[] tcpDataRecv = new byte[maxBytes];
-                    int bytesRead = inputStream.read(tcpDataRecv); // blocks until at least one byte is available
-
-                    if (bytesRead == -1) {
-                        // End of stream
-                        tcpDataRecv = new byte[0];
-                    } else if (bytesRead < maxBytes) {
-                        // Trim to actual bytes received
-                        tcpDataRecv = Arrays.copyOf(tcpDataRecv, bytesRead);
-                    }
-
-                    tcpLength = testTcpTop(tcpDataRecv);
-                    if (tcpLength == 0) {
-                        throw new ZKNetworkError("TCP packet invalid");
-                    }
-
-                    this.header = Struct.unpack("<4H", Arrays.copyOfRange(tcpDataRecv, 8, 16));
+                    // whole frame, a large reply no longer needs topping up by the caller
+                    tcpLength = this.tcpReader.nextFrame();
+                    byte[] packet = new byte[tcpLength];
+                    this.tcpReader.readFully(packet, 0, tcpLength);
+                    this.metrics.bytesReceived(8 + tcpLength);
 
-                    this.dataRecv = Arrays.copyOfRange(tcpDataRecv, 8, tcpDataRecv.length);
+                    this.dataRecv = packet;
                 } else {
 
                     this.udpSocket.send(new DatagramPacket(buf, buf.length, this.address));
+                    this.metrics.bytesSent(buf.length);
                     byte[] recvBuf = new byte[responseSize];
                     DatagramPacket packet = new DatagramPacket(recvBuf, recvBuf.length);
                     this.udpSocket.receive(packet);
+                    this.metrics.bytesReceived(packet.getLength());
 
-                    this.dataRecv = recvBuf;
-                    this.header = Struct.unpack("<4H", Arrays.copyOfRange(this.dataRecv, 0, 8));
+                    this.dataRecv = packet.getLength() < recvBuf.length
+                            ? Arrays.copyOf(recvBuf, packet.getLength())
+                            : recvBuf;
                 }
             } catch (IOException e) {
+                if (e instanceof SocketTimeoutException) {
+                    this.metrics.timeout(command);
+                    if (this.deadline.isExpired()) {
+                        this.metrics.commandCompleted(command, System.nanoTime() - started, false);
+                        throw new ZKDeadlineExceeded("Deadline exceeded waiting for reply to " + command);
+                    }
+                } else {
+                    this.isConnect = false; // reset, closed or unreachable: the session is gone
+                }
+                this.metrics.commandCompleted(command, System.nanoTime() - started, false);
                 throw new ZKNetworkError(e.getMessage());
             }
 
-            this.response = (int) this.header[0];
-            this.replyId = (int) this.header[3];
-            this.data = Arrays.copyOfRange(this.dataRecv, 8, this.dataRecv.length);
-
-            Map<String, Object> result = new HashMap<>();
-
-            if (this.response == DeviceConstants.CMD_ACK_OK || this.response == DeviceConstants.CMD_PREPARE_DATA
-                    || this.response == DeviceConstants.CMD_DATA) {
-                result.put("code", this.response);
-                result.put("status", true);
-                return result;
+            if (this.dataRecv.length < 8) {
+                this.metrics.commandCompleted(command, System.nanoTime() - started, false);
+                throw new ZKNetworkError("Reply packet too short");
             }
+            Response result = new Response(this.dataRecv, 0, this.dataRecv.length);
+            this.response = result.code;
+            this.replyId = result.replyId;
 
-            result.put("code", this.response);
-            result.put("status", false);
+            this.metrics.commandCompleted(command, System.nanoTime() - started, result.status);
             return result;
         }
 
@@ -440,8 +569,10 @@ public class Base {
                 if (this.tcp) {
                     byte[] top = createTcpTop(buf);
                     this.tcpSocket.getOutputStream().write(top);
+                    this.metrics.bytesSent(top.length);
                 } else {
                     this.udpSocket.send(new DatagramPacket(buf, buf.length, this.address));
+                    this.metrics.bytesSent(buf.length);
                 }
             } catch (IOException e) {
                 throw new ZKNetworkError(e.getMessage());
@@ -449,9 +580,9 @@ public class Base {
         }
 
         // Gets data size from CMD_PREPARE_DATA response
-        private int getDataSize() {
-            if (this.response == DeviceConstants.CMD_PREPARE_DATA) {
-                int size = (int) Struct.unpack("I", Arrays.copyOfRange(this.data, 0, 4))[0];
+        private int getDataSize(Response response) {
+            if (response.code == DeviceConstants.CMD_PREPARE_DATA && response.payloadLength() >= 4) {
+                int size = response.payload().getInt(0);
                 // ByteBuffer buf = ByteBuffer.wrap(this.data, 0,
                 // 4).order(ByteOrder.LITTLE_ENDIAN);
                 // return buf.getInt();
@@ -472,25 +603,7 @@ public class Base {
         //
         private LocalDateTime decodeTime(byte[] t) {
             int raw = (int) Struct.unpack("I", t)[0];
-
-            int second = (int) (raw % 60);
-            raw /= 60;
-
-            int minute = (int) (raw % 60);
-            raw /= 60;
-
-            int hour = (int) (raw % 24);
-            raw /= 24;
-
-            int day = (int) (raw % 31) + 1;
-            raw /= 31;
-
-            int month = (int) (raw % 12) + 1;
-            raw /= 12;
-
-            int year = (int) (raw + 2000);
-
-            return LocalDateTime.of(year, month, day, hour, minute, second);
+            return decodePackedTime(raw);
         }
 
         // public LocalDateTime parseTime(long intTimeValue)
@@ -544,47 +657,233 @@ public class Base {
 
         public ZK connect() throws Exception {
             this.endLiveCapture = false;
+            this.eventFlags = 0;
 
-            if (!this.ommitPing && !helper.testPing()) {
-                throw new ZKNetworkError(
-                        "Can't reach device (ping " + this.address.getAddress().getHostAddress() + ")");
+            if (this.profile == null && this.profileCache != null) {
+                this.profile = this.profileCache.load(this.ip, this.port);
             }
 
-            if (!this.forceUdp && helper.testTCP() == 0) {
+            this.tcp = !this.forceUdp;
+            if (this.profile != null) {
+                // known device, skip discovery; TCP is still tried first unless a race chose UDP
+                this.tcp = !this.profile.prefersUdp() && !this.forceUdp;
+                if (this.profile.hasUserPacketSize()) {
+                    this.userPacketSize = this.profile.userPacketSize;
+                }
+                log.debug("Using cached %s", this.profile);
+            }
+
+            TransportAttempt raced = null;
+            List<TransportAttempt> attempts = new ArrayList<>(2);
+            Response cmdResponse;
+            if (this.raceTransports && this.profileCache != null && !this.forceUdp
+                    && (this.profile == null || !this.profile.hasTransportRtt())) {
+                // a handshake reply proves reachability, no ping needed
+                raced = raceTransports(attempts);
+                adopt(raced);
+                cmdResponse = raced.response;
+            } else {
+                // a successful TCP connect proves reachability, the session keeps that socket
+                createSocket();
+                if (!this.tcp && !this.ommitPing && !helper.testPing()) {
+                    throw new ZKNetworkError(
+                            "Can't reach device (ping " + this.address.getAddress().getHostAddress() + ")");
+                }
+                this.sessionId = 0;
+                this.replyId = DeviceConstants.USHRT_MAX - 1;
+                cmdResponse = sendCommand(DeviceConstants.CMD_CONNECT);
+            }
+            if (this.tcp && (this.profile == null || !this.profile.hasUserPacketSize())) {
                 this.userPacketSize = 72; // default zk8
             }
+            this.sessionId = cmdResponse.sessionId;
 
-            createSocket();
-            this.sessionId = 0;
-            this.replyId = DeviceConstants.USHRT_MAX - 1;
-
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_CONNECT);
-            this.sessionId = (int) this.header[2];// Byte.toUnsignedInt(this.header[2]);
-
-            if ((int) cmdResponse.get("code") == DeviceConstants.CMD_ACK_UNAUTH) {
-                if (this.verbose)
-                    System.out.println("Try auth");
+            if (cmdResponse.code == DeviceConstants.CMD_ACK_UNAUTH) {
+                log.debug("Try auth");
                 byte[] commandString = makeCommKey(this.password, this.sessionId);
                 cmdResponse = sendCommand(DeviceConstants.CMD_AUTH, commandString);
             }
 
-            if ((boolean) cmdResponse.get("status")) {
+            if (cmdResponse.status) {
                 this.isConnect = true;
+                if (this.profile != null) {
+                    checkProfileDevice();
+                }
+                // a UDP fallback may follow a single TCP timeout, so only a TCP
+                // handshake or a transport race decides the stored transport
+                boolean measured = !this.forceUdp && (raced != null || this.tcp);
+                if (this.profile == null && this.profileCache != null) {
+                    // the packet size is only stored once getUsers has measured it
+                    this.profile = new DeviceProfile();
+                    this.profile.tcp = this.tcp || !measured;
+                    saveProfile();
+                    learnSerialNumber();
+                } else if (this.profile != null && measured && this.profile.tcp != this.tcp) {
+                    this.profile.tcp = this.tcp;
+                    saveProfile();
+                }
+                if (raced != null && this.profile != null) {
+                    // the loser is only counted if it answered by now; results are written on this thread
+                    for (TransportAttempt attempt : attempts) {
+                        if (attempt.rttNanos > 0) {
+                            recordRtt(attempt);
+                        }
+                    }
+                    saveProfile();
+                }
                 return this;
             } else {
-                if ((int) cmdResponse.get("code") == DeviceConstants.CMD_ACK_UNAUTH) {
+                if (cmdResponse.code == DeviceConstants.CMD_ACK_UNAUTH) {
                     throw new ZKErrorResponse("Unauthenticated");
                 }
-                if (this.verbose)
-                    System.out.println("Connect error response: " + cmdResponse.get("code"));
+                log.debug("Connect error response: %s", cmdResponse.code);
                 throw new ZKErrorResponse("Invalid response: Can't connect");
             }
         }
 
+        /**
+         * Sends CMD_CONNECT over TCP and UDP at the same time and returns the
+         * first transport to answer. The other attempt is closed when it finishes.
+         * Both attempts are added to {@code attempts} so connect() can record
+         * their round trips.
+         */
+        private TransportAttempt raceTransports(List<TransportAttempt> attempts) throws ZKNetworkError {
+            Executor threads = task -> {
+                Thread thread = new Thread(task, "zk-connect-" + deviceName());
+                thread.setDaemon(true);
+                thread.start();
+            };
+            CompletableFuture<TransportAttempt> winner = new CompletableFuture<>();
+            AtomicInteger failed = new AtomicInteger();
+            for (boolean overTcp : new boolean[] { true, false }) {
+                TransportAttempt attempt = new TransportAttempt(overTcp);
+                attempts.add(attempt);
+                CompletableFuture.supplyAsync(attempt::run, threads).whenComplete((done, e) -> {
+                    if (e == null) {
+                        if (!winner.complete(done)) {
+                            done.close();
+                        }
+                    } else {
+                        attempt.close();
+                        log.debug("%s handshake failed: %s", overTcp ? "TCP" : "UDP", e.getCause());
+                        if (failed.incrementAndGet() == 2) {
+                            winner.completeExceptionally(e.getCause());
+                        }
+                    }
+                });
+            }
+            try {
+                TransportAttempt attempt = winner.get();
+                log.debug("%s won the connect race in %dus", attempt.tcp ? "TCP" : "UDP", attempt.rttNanos / 1000);
+                return attempt;
+            } catch (ExecutionException e) {
+                throw new ZKNetworkError("Can't reach device: " + e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ZKNetworkError("Interrupted while connecting");
+            }
+        }
+
+        // Takes over the sockets of the winning attempt
+        private void adopt(TransportAttempt attempt) {
+            this.tcp = attempt.tcp;
+            if (attempt.tcp) {
+                this.tcpSocket = attempt.tcpSocket;
+                this.tcpReader = attempt.reader;
+            } else {
+                if (this.udpSocket != null && this.udpSocket != attempt.udpSocket) {
+                    this.udpSocket.close();
+                }
+                this.udpSocket = attempt.udpSocket;
+            }
+            this.replyId = attempt.response.replyId;
+            this.response = attempt.response.code;
+            this.metrics.commandCompleted(DeviceConstants.CMD_CONNECT, attempt.rttNanos, attempt.response.status);
+        }
+
+        private void recordRtt(TransportAttempt attempt) {
+            long micros = Math.max(1, attempt.rttNanos / 1000);
+            if (attempt.tcp) {
+                this.profile.tcpRttMicros = micros;
+            } else {
+                this.profile.udpRttMicros = micros;
+            }
+        }
+
+        // One CMD_CONNECT over a single transport, on its own sockets
+        private class TransportAttempt {
+            final boolean tcp;
+            Socket tcpSocket;
+            TcpFrameReader reader;
+            DatagramSocket udpSocket;
+            Response response;
+            volatile long rttNanos; // set by the attempt's thread once it has answered
+
+            TransportAttempt(boolean tcp) {
+                this.tcp = tcp;
+            }
+
+            TransportAttempt run() {
+                byte[] buf = createHeader(DeviceConstants.CMD_CONNECT, new byte[0], 0, DeviceConstants.USHRT_MAX - 1);
+                long started = System.nanoTime();
+                try {
+                    if (tcp) {
+                        tcpSocket = new Socket();
+                        tcpSocket.setSoTimeout(timeout * 1000);
+                        tcpSocket.connect(address, timeout * 1000);
+                        reader = new TcpFrameReader(tcpSocket.getInputStream(), 0x10000);
+                        tcpSocket.getOutputStream().write(createTcpTop(buf));
+                        int length = reader.nextFrame();
+                        byte[] packet = new byte[length];
+                        reader.readFully(packet, 0, length);
+                        response = new Response(packet, 0, length);
+                    } else {
+                        udpSocket = new DatagramSocket();
+                        udpSocket.setSoTimeout(timeout * 1000);
+                        udpSocket.send(new DatagramPacket(buf, buf.length, address));
+                        byte[] packet = new byte[1024];
+                        DatagramPacket reply = new DatagramPacket(packet, packet.length);
+                        udpSocket.receive(reply);
+                        response = new Response(packet, 0, reply.getLength());
+                    }
+                } catch (IOException | RuntimeException e) {
+                    throw new CompletionException(e);
+                }
+                rttNanos = System.nanoTime() - started;
+                return this;
+            }
+
+            // Ends the device session if one was opened, then closes the sockets
+            void close() {
+                try {
+                    if (response != null && (response.status || response.code == DeviceConstants.CMD_ACK_UNAUTH)) {
+                        byte[] buf = createHeader(DeviceConstants.CMD_EXIT, new byte[0], response.sessionId,
+                                response.replyId);
+                        if (tcp) {
+                            tcpSocket.getOutputStream().write(createTcpTop(buf));
+                        } else {
+                            udpSocket.send(new DatagramPacket(buf, buf.length, address));
+                        }
+                    }
+                } catch (IOException ignored) {
+                } finally {
+                    try {
+                        if (tcpSocket != null) {
+                            tcpSocket.close();
+                        }
+                    } catch (IOException ignored) {
+                    }
+                    if (udpSocket != null) {
+                        udpSocket.close();
+                    }
+                }
+            }
+        }
+
         public boolean disconnect() throws Exception {
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_EXIT);
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_EXIT);
 
-            if ((boolean) cmdResponse.get("status")) {
+            if (cmdResponse.status) {
                 this.isConnect = false;
                 if (this.tcpSocket != null) {
                     this.tcpSocket.close();
@@ -599,10 +898,66 @@ public class Base {
             }
         }
 
+        public DeviceProfile getProfile() {
+            return this.profile;
+        }
+
+        /**
+         * A cached profile belongs to the device it was learned from. If another
+         * device now answers at this address (replaced or re-addressed), the
+         * profile is dropped and its packet size with it.
+         */
+        private void checkProfileDevice() throws Exception {
+            if (this.profile.serialNumber.isEmpty()) {
+                learnSerialNumber();
+                return;
+            }
+            DeviceProfile cached = this.profile;
+            this.profile = null; // read without overwriting the cached serial number
+            String serialNumber;
+            try {
+                serialNumber = getSerialNumber();
+            } catch (ZKErrorResponse e) {
+                this.profile = cached; // can't tell, keep using it
+                return;
+            }
+            if (serialNumber.equals(cached.serialNumber)) {
+                this.profile = cached;
+                return;
+            }
+            log.debug("device %s answers at %s, dropping the profile of %s", serialNumber, this.ip,
+                    cached.serialNumber);
+            this.userPacketSize = this.tcp ? 72 : 28;
+            this.profile = new DeviceProfile();
+            this.profile.tcp = this.tcp;
+            this.profile.serialNumber = serialNumber;
+            saveProfile();
+        }
+
+        // getSerialNumber stores the value in the profile
+        private void learnSerialNumber() throws Exception {
+            try {
+                getSerialNumber();
+            } catch (ZKErrorResponse e) {
+                log.debug("Can't read serial number for the profile");
+            }
+        }
+
+        // Persists the learned profile, the cache is best effort only
+        private void saveProfile() {
+            if (this.profile == null || this.profileCache == null)
+                return;
+            try {
+                this.profileCache.store(this.ip, this.port, this.profile);
+            } catch (IOException e) {
+                log.debug("Can't store device profile: %s", e.getMessage());
+            }
+        }
+
         public boolean enableDevice() throws Exception {
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_ENABLEDEVICE);
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_ENABLEDEVICE);
 
-            if ((boolean) cmdResponse.get("status")) {
+            if (cmdResponse.status) {
                 this.isEnabled = true;
                 return true;
             } else {
@@ -611,9 +966,9 @@ public class Base {
         }
 
         public boolean disableDevice() throws Exception {
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_DISABLEDEVICE);
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_DISABLEDEVICE);
 
-            if ((boolean) cmdResponse.get("status")) {
+            if (cmdResponse.status) {
                 this.isEnabled = false;
                 return true;
             } else {
@@ -622,31 +977,40 @@ public class Base {
         }
 
         public String getFirmwareVersion() throws Exception {
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_GET_VERSION, new byte[0], 1024);
-            if ((boolean) cmdResponse.get("status")) {
-                byte[] firmwareVersion = Arrays.copyOfRange(this.data, 0, indexOf(this.data, (byte) 0));
-                return new String(firmwareVersion);
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_GET_VERSION, new byte[0], 1024);
+            if (cmdResponse.status) {
+                String version = new String(cString(cmdResponse.payloadBytes()));
+                if (this.profile != null && !version.equals(this.profile.firmwareVersion)) {
+                    this.profile.firmwareVersion = version;
+                    saveProfile();
+                }
+                return version;
             } else {
                 throw new ZKErrorResponse("Can't read firmware version");
             }
         }
 
         public String getSerialNumber() throws Exception {
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_OPTIONS_RRQ,
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_OPTIONS_RRQ,
                     "~SerialNumber\u0000".getBytes(), 1024);
-            if ((boolean) cmdResponse.get("status")) {
-                byte[] raw = extractValue(this.data);
-                return new String(raw).replace("=", "");
+            if (cmdResponse.status) {
+                byte[] raw = extractValue(cmdResponse.payloadBytes());
+                String serialNumber = new String(raw).replace("=", "");
+                if (this.profile != null && !serialNumber.equals(this.profile.serialNumber)) {
+                    this.profile.serialNumber = serialNumber;
+                    saveProfile();
+                }
+                return serialNumber;
             } else {
                 throw new ZKErrorResponse("Can't read serial number");
             }
         }
 
         public String getPlatform() throws Exception {
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_OPTIONS_RRQ, "~Platform\u0000".getBytes(),
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_OPTIONS_RRQ, "~Platform\u0000".getBytes(),
                     1024);
-            if ((boolean) cmdResponse.get("status")) {
-                byte[] raw = extractValue(this.data);
+            if (cmdResponse.status) {
+                byte[] raw = extractValue(cmdResponse.payloadBytes());
                 return new String(raw).replace("=", "");
             } else {
                 throw new ZKErrorResponse("Can't read platform name");
@@ -654,10 +1018,10 @@ public class Base {
         }
 
         public String getMac() throws Exception {
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_OPTIONS_RRQ, "MAC\u0000".getBytes(),
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_OPTIONS_RRQ, "MAC\u0000".getBytes(),
                     1024);
-            if ((boolean) cmdResponse.get("status")) {
-                byte[] raw = extractValue(this.data);
+            if (cmdResponse.status) {
+                byte[] raw = extractValue(cmdResponse.payloadBytes());
                 return new String(raw);
             } else {
                 throw new ZKErrorResponse("Can't read MAC address");
@@ -665,10 +1029,10 @@ public class Base {
         }
 
         public String getDeviceName() throws Exception {
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_OPTIONS_RRQ,
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_OPTIONS_RRQ,
                     "~DeviceName\u0000".getBytes(), 1024);
-            if ((boolean) cmdResponse.get("status")) {
-                byte[] raw = extractValue(this.data);
+            if (cmdResponse.status) {
+                byte[] raw = extractValue(cmdResponse.payloadBytes());
                 return new String(raw);
             } else {
                 return "";
@@ -676,10 +1040,10 @@ public class Base {
         }
 
         public int getFaceVersion() throws Exception {
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_OPTIONS_RRQ,
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_OPTIONS_RRQ,
                     "ZKFaceVersion\u0000".getBytes(), 1024);
-            if ((boolean) cmdResponse.get("status")) {
-                byte[] raw = extractValue(this.data);
+            if (cmdResponse.status) {
+                byte[] raw = extractValue(cmdResponse.payloadBytes());
                 return safeCast(raw, 0);
             } else {
                 return 0;
@@ -687,10 +1051,10 @@ public class Base {
         }
 
         public int getFpVersion() throws Exception {
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_OPTIONS_RRQ,
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_OPTIONS_RRQ,
                     "~ZKFPVersion\u0000".getBytes(), 1024);
-            if ((boolean) cmdResponse.get("status")) {
-                byte[] raw = extractValue(this.data);
+            if (cmdResponse.status) {
+                byte[] raw = extractValue(cmdResponse.payloadBytes());
                 return safeCast(raw, 0);
             } else {
                 throw new ZKErrorResponse("Can't read fingerprint version");
@@ -708,16 +1072,26 @@ public class Base {
             sendCommand(DeviceConstants.CMD_ACK_UNKNOWN, commandString, 1024);
         }
 
+        // Value of a "key=value\0" option reply; replies may lack the key or the
+        // terminator now that UDP payloads are cut to the received length
         private byte[] extractValue(byte[] data) {
-            int start = indexOf(data, (byte) '=') + 1;
+            int equals = indexOf(data, (byte) '=');
+            int start = equals < data.length ? equals + 1 : 0;
             int end = indexOf(data, (byte) 0, start);
             return Arrays.copyOfRange(data, start, end);
         }
 
+        // Text up to the first NUL, or the whole payload if there is none
+        private byte[] cString(byte[] data) {
+            return Arrays.copyOf(data, indexOf(data, (byte) 0));
+        }
+
         private int indexOf(byte[] array, byte value) {
             return indexOf(array, value, 0);
         }
 
+        // Returns array.length when the value is not found, never -1
+
         private int indexOf(byte[] array, byte value, int start) {
             for (int i = start; i < array.length; i++) {
                 if (array[i] == value)
@@ -740,9 +1114,9 @@ public class Base {
              */
 
             byte[] commandString = "~ExtendFmt\u0000".getBytes();
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_OPTIONS_RRQ, commandString, 1024);
-            if ((boolean) cmdResponse.get("status")) {
-                byte[] fmt = extractValue(this.data);
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_OPTIONS_RRQ, commandString, 1024);
+            if (cmdResponse.status) {
+                byte[] fmt = extractValue(cmdResponse.payloadBytes());
                 return safeCast(fmt, 0);
             } else {
                 clearError(commandString);
@@ -752,9 +1126,9 @@ public class Base {
 
         public Integer getUserExtendFmt() throws Exception {
             byte[] commandString = "~UserExtFmt\u0000".getBytes();
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_OPTIONS_RRQ, commandString, 1024);
-            if ((boolean) cmdResponse.get("status")) {
-                byte[] fmt = extractValue(this.data);
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_OPTIONS_RRQ, commandString, 1024);
+            if (cmdResponse.status) {
+                byte[] fmt = extractValue(cmdResponse.payloadBytes());
                 return safeCast(fmt, 0);
             } else {
                 clearError(commandString);
@@ -764,9 +1138,9 @@ public class Base {
 
         public Integer getFaceFunOn() throws Exception {
             byte[] commandString = "FaceFunOn\u0000".getBytes();
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_OPTIONS_RRQ, commandString, 1024);
-            if ((boolean) cmdResponse.get("status")) {
-                byte[] response = extractValue(this.data);
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_OPTIONS_RRQ, commandString, 1024);
+            if (cmdResponse.status) {
+                byte[] response = extractValue(cmdResponse.payloadBytes());
                 return safeCast(response, 0);
             } else {
                 clearError(commandString);
@@ -776,9 +1150,9 @@ public class Base {
 
         public Integer getCompatOldFirmware() throws Exception {
             byte[] commandString = "CompatOldFirmware\u0000".getBytes();
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_OPTIONS_RRQ, commandString, 1024);
-            if ((boolean) cmdResponse.get("status")) {
-                byte[] response = extractValue(this.data);
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_OPTIONS_RRQ, commandString, 1024);
+            if (cmdResponse.status) {
+                byte[] response = extractValue(cmdResponse.payloadBytes());
                 return safeCast(response, 0);
             } else {
                 clearError(commandString);
@@ -794,20 +1168,20 @@ public class Base {
             String mask = "";
             String gate = "";
 
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_OPTIONS_RRQ, "IPAddress\u0000".getBytes(),
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_OPTIONS_RRQ, "IPAddress\u0000".getBytes(),
                     1024);
-            if ((boolean) cmdResponse.get("status")) {
-                ip = new String(extractValue(this.data));
+            if (cmdResponse.status) {
+                ip = new String(extractValue(cmdResponse.payloadBytes()));
             }
 
             cmdResponse = sendCommand(DeviceConstants.CMD_OPTIONS_RRQ, "NetMask\u0000".getBytes(), 1024);
-            if ((boolean) cmdResponse.get("status")) {
-                mask = new String(extractValue(this.data));
+            if (cmdResponse.status) {
+                mask = new String(extractValue(cmdResponse.payloadBytes()));
             }
 
             cmdResponse = sendCommand(DeviceConstants.CMD_OPTIONS_RRQ, "GATEIPAddress\u0000".getBytes(), 1024);
-            if ((boolean) cmdResponse.get("status")) {
-                gate = new String(extractValue(this.data));
+            if (cmdResponse.status) {
+                gate = new String(extractValue(cmdResponse.payloadBytes()));
             }
 
             Map<String, String> result = new HashMap<>();
@@ -818,9 +1192,12 @@ public class Base {
         }
 
         public int getPinWidth() throws Exception {
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_GET_PINWIDTH, " P".getBytes(), 9);
-            if ((boolean) cmdResponse.get("status")) {
-                byte[] width = Arrays.copyOfRange(this.data, 0, indexOf(this.data, (byte) 0));
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_GET_PINWIDTH, " P".getBytes(), 9);
+            if (cmdResponse.status) {
+                byte[] width = cString(cmdResponse.payloadBytes());
+                if (width.length == 0) {
+                    throw new ZKErrorResponse("can't get pin width");
+                }
                 return Byte.toUnsignedInt(width[0]);
             } else {
                 throw new ZKErrorResponse("can't get pin width");
@@ -828,8 +1205,8 @@ public class Base {
         }
 
         public boolean freeData() throws Exception {
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_FREE_DATA);
-            if ((boolean) cmdResponse.get("status")) {
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_FREE_DATA);
+            if (cmdResponse.status) {
                 return true;
             } else {
                 throw new ZKErrorResponse("can't free data");
@@ -837,47 +1214,49 @@ public class Base {
         }
 
         public boolean readSizes() throws Exception {
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_GET_FREE_SIZES, new byte[0], 1024);
-            if ((boolean) cmdResponse.get("status")) {
-                if (this.verbose) {
-                    System.out.println(BinUtils.byteArrayToHex(this.data));
-                }
-
-                if (this.data.length >= 80) {
-                    Object[] fields = Struct.unpack("20i", Arrays.copyOfRange(this.data, 0, 80));
-                    this.users = (int) fields[4];
-                    this.fingers = (int) fields[6];
-                    this.records = (int) fields[8];
-                    this.dummy = (int) fields[10];
-                    this.cards = (int) fields[12];
-                    this.fingersCap = (int) fields[14];
-                    this.usersCap = (int) fields[15];
-                    this.recCap = (int) fields[16];
-                    this.fingersAv = (int) fields[17];
-                    this.usersAv = (int) fields[18];
-                    this.recAv = (int) fields[19];
-                    this.data = Arrays.copyOfRange(this.data, 80, this.data.length);
-                }
-
-                if (this.data.length >= 12) {
-                    Object[] faceFields = Struct.unpack("3i", Arrays.copyOfRange(this.data, 0, 12));
-                    this.faces = (int) faceFields[0];
-                    this.facesCap = (int) faceFields[2];
-                }
-
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_GET_FREE_SIZES, new byte[0], 1024);
+            if (cmdResponse.status) {
+                applySizes(cmdResponse.payloadBytes());
                 return true;
             } else {
                 throw new ZKErrorResponse("can't read sizes");
             }
         }
 
+        // Stores the counters of a CMD_GET_FREE_SIZES reply
+        private void applySizes(byte[] data) {
+            log.hex(Level.DEBUG, "", data);
+
+            if (data.length >= 80) {
+                Object[] fields = Struct.unpack("20i", Arrays.copyOfRange(data, 0, 80));
+                this.users = (int) fields[4];
+                this.fingers = (int) fields[6];
+                this.records = (int) fields[8];
+                this.dummy = (int) fields[10];
+                this.cards = (int) fields[12];
+                this.fingersCap = (int) fields[14];
+                this.usersCap = (int) fields[15];
+                this.recCap = (int) fields[16];
+                this.fingersAv = (int) fields[17];
+                this.usersAv = (int) fields[18];
+                this.recAv = (int) fields[19];
+                data = Arrays.copyOfRange(data, 80, data.length);
+            }
+
+            if (data.length >= 12) {
+                Object[] faceFields = Struct.unpack("3i", Arrays.copyOfRange(data, 0, 12));
+                this.faces = (int) faceFields[0];
+                this.facesCap = (int) faceFields[2];
+            }
+        }
+
         public boolean unlock(int timeInSeconds) throws Exception {
             if (timeInSeconds == 0) {
                 timeInSeconds = 3;
             }
             byte[] commandString = Struct.pack("I", timeInSeconds * 10);
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_UNLOCK, commandString);
-            if ((boolean) cmdResponse.get("status")) {
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_UNLOCK, commandString);
+            if (cmdResponse.status) {
                 return true;
             } else {
                 throw new ZKErrorResponse("Can't open door");
@@ -885,8 +1264,8 @@ public class Base {
         }
 
         public boolean getLockState() throws Exception {
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_DOORSTATE_RRQ);
-            return (boolean) cmdResponse.get("status");
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_DOORSTATE_RRQ);
+            return cmdResponse.status;
         }
 
         @Override
@@ -903,8 +1282,8 @@ public class Base {
         }
 
         public boolean restart() throws Exception {
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_RESTART);
-            if ((boolean) cmdResponse.get("status")) {
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_RESTART);
+            if (cmdResponse.status) {
                 this.isConnect = false;
                 this.nextUid = 1;
                 return true;
@@ -916,12 +1295,12 @@ public class Base {
         public boolean writeLcd(int lineNumber, String text) throws Exception {
             List<byte[]> chunks = new ArrayList<>();
             chunks.add(Struct.pack("<hb", lineNumber, 0));
-            chunks.add(" ".getBytes(this.encoding));
-            chunks.add(text.getBytes(this.encoding));
+            chunks.add(textCodec().encode(" "));
+            chunks.add(textCodec().encode(text));
             byte[] commandString = concatAll(chunks);
 
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_WRITE_LCD, commandString);
-            if ((boolean) cmdResponse.get("status")) {
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_WRITE_LCD, commandString);
+            if (cmdResponse.status) {
                 return true;
             } else {
                 throw new ZKErrorResponse("Can't write LCD");
@@ -929,8 +1308,8 @@ public class Base {
         }
 
         public boolean clearLcd() throws Exception {
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_CLEAR_LCD);
-            if ((boolean) cmdResponse.get("status")) {
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_CLEAR_LCD);
+            if (cmdResponse.status) {
                 return true;
             } else {
                 throw new ZKErrorResponse("Can't clear LCD");
@@ -938,9 +1317,9 @@ public class Base {
         }
 
         public LocalDateTime getTime() throws Exception {
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_GET_TIME, new byte[0], 1032);
-            if ((boolean) cmdResponse.get("status")) {
-                byte[] timeBytes = Arrays.copyOfRange(this.data, 0, 4);
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_GET_TIME, new byte[0], 1032);
+            if (cmdResponse.status) {
+                byte[] timeBytes = Arrays.copyOf(cmdResponse.payloadBytes(), 4);
                 return decodeTime(timeBytes);
             } else {
                 throw new ZKErrorResponse("Can't get time");
@@ -949,8 +1328,8 @@ public class Base {
 
         public boolean setTime(LocalDateTime timestamp) throws Exception {
             byte[] commandString = Struct.pack("I", encodeTime(timestamp));
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_SET_TIME, commandString);
-            if ((boolean) cmdResponse.get("status")) {
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_SET_TIME, commandString);
+            if (cmdResponse.status) {
                 return true;
             } else {
                 throw new ZKErrorResponse("Can't set time");
@@ -958,8 +1337,8 @@ public class Base {
         }
 
         public boolean powerOff() throws Exception {
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_POWEROFF, new byte[0], 1032);
-            if ((boolean) cmdResponse.get("status")) {
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_POWEROFF, new byte[0], 1032);
+            if (cmdResponse.status) {
                 this.isConnect = false;
                 this.nextUid = 1;
                 return true;
@@ -969,8 +1348,8 @@ public class Base {
         }
 
         public boolean refreshData() throws Exception {
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_REFRESHDATA);
-            if ((boolean) cmdResponse.get("status")) {
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_REFRESHDATA);
+            if (cmdResponse.status) {
                 return true;
             } else {
                 throw new ZKErrorResponse("Can't refresh data");
@@ -979,7 +1358,6 @@ public class Base {
 
         public void setUser(Integer uid, String name, int privilege, String password, String groupId, String userId,
                 int card) throws Exception {
-            int userPacketSize = this.userPacketSize;
             if (uid == null) {
                 uid = this.nextUid;
                 if (userId == null || userId.isEmpty()) {
@@ -993,47 +1371,216 @@ public class Base {
                 privilege = DeviceConstants.USER_DEFAULT;
             }
 
-            byte[] commandString;
-            if (userPacketSize == 28) {
-                int group = (groupId == null || groupId.isEmpty()) ? 0 : Integer.parseInt(groupId);
+            byte[] commandString = packUser(uid, name, privilege, password, groupId, userId, card);
+
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_USER_WRQ, commandString, 1024);
+            log.debug("Response: %s", cmdResponse);
+            if (!cmdResponse.status) {
+                throw new ZKErrorResponse("Can't set user");
+            }
+
+            refreshData();
+            if (this.nextUid == uid) {
+                this.nextUid++;
+            }
+            if (this.nextUserId.equals(userId)) {
+                this.nextUserId = String.valueOf(this.nextUid);
+            }
+        }
+
+        /**
+         * The user as this device would store and report it: fields truncated to
+         * the 28 or 72 byte layout and decoded back. Users that cannot be packed
+         * (e.g. a non-numeric user id on a 28 byte device) are returned as given.
+         */
+        public User storedForm(User user) {
+            try {
+                return decodeUser(packUser(user.uid, user.name, user.privilege, user.password, user.groupId,
+                        user.userId, (int) user.card));
+            } catch (Exception e) {
+                return user;
+            }
+        }
+
+        // Packs a CMD_USER_WRQ record in the 28 (zk6) or 72 (zk8) byte layout of this device
+        private byte[] packUser(int uid, String name, int privilege, String password, String groupId, String userId,
+                int card) throws Exception {
+            if (name == null)
+                name = "";
+            if (password == null)
+                password = "";
+            if (groupId == null)
+                groupId = "";
+
+            if (this.userPacketSize == 28) {
+                int group = groupId.isEmpty() ? 0 : Integer.parseInt(groupId);
                 try {
-                    commandString = Struct.pack("HB5s8sIxBHI", uid, privilege,
-                            password.getBytes(this.encoding),
-                            name.getBytes(this.encoding),
+                    return Struct.pack("HB5s8sIxBHI", uid, privilege,
+                            textCodec().encode(password),
+                            textCodec().encode(name),
                             card, group, 0, Integer.parseInt(userId));
                 } catch (Exception e) {
-                    if (this.verbose) {
-                        System.out.println("Error packing user: " + e.getMessage());
-                    }
+                    log.debug("Error packing user: %s", e.getMessage());
                     throw new ZKErrorResponse("Can't pack user");
                 }
             } else {
-                byte[] nameBytes = name.getBytes(this.encoding);
                 byte[] namePad = new byte[24];
-                System.arraycopy(nameBytes, 0, namePad, 0, Math.min(nameBytes.length, 24));
+                textCodec().encode(name, namePad, 0, 24);
 
                 byte[] cardStr = Arrays.copyOfRange(Struct.pack("<I", card), 0, 4);
-                commandString = Struct.pack("HB8s24s4sx7sx24s", uid, privilege,
-                        password.getBytes(this.encoding),
+                return Struct.pack("HB8s24s4sx7sx24s", uid, privilege,
+                        textCodec().encode(password),
                         namePad, cardStr,
-                        groupId.getBytes(this.encoding),
-                        userId.getBytes(this.encoding));
+                        textCodec().encode(groupId),
+                        textCodec().encode(userId));
             }
+        }
+
+        public class BatchResult {
+            public final List<User> succeeded = new ArrayList<>();
+            public final List<Map.Entry<User, Exception>> failed = new ArrayList<>();
 
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_USER_WRQ, commandString, 1024);
-            if (this.verbose) {
-                System.out.println("Response: " + cmdResponse);
+            public boolean isSuccess() {
+                return failed.isEmpty();
             }
-            if (!(boolean) cmdResponse.get("status")) {
-                throw new ZKErrorResponse("Can't set user");
+
+            void fail(User user, Exception e) {
+                failed.add(new AbstractMap.SimpleEntry<>(user, e));
             }
 
-            refreshData();
-            if (this.nextUid == uid) {
-                this.nextUid++;
+            @Override
+            public String toString() {
+                return String.format("<BatchResult>: [ok: %d, failed: %d]", succeeded.size(), failed.size());
             }
-            if (this.nextUserId.equals(userId)) {
-                this.nextUserId = String.valueOf(this.nextUid);
+        }
+
+        /**
+         * Writes many users back to back and refreshes the device data once at the end.
+         * Privileges are written as given. The users passed in are not modified: a user
+         * with uid 0 gets the next free uid as in setUser(), an empty userId is written
+         * as the uid, and results hold the user as written. Device rejections are
+         * reported per user. On a network error the remaining users are marked failed
+         * and the session is dropped, since a late reply would be taken for the answer
+         * to the next command; reconnect and call refreshData() to commit the users
+         * written before the error.
+         */
+        public BatchResult setUsers(Collection<User> users) throws Exception {
+            BatchResult result = new BatchResult();
+            List<User> pending = new ArrayList<>(users.size());
+            List<byte[]> packets = new ArrayList<>(users.size());
+            Set<Integer> taken = new HashSet<>();
+            for (User user : users) {
+                taken.add(user.uid);
+            }
+            int freeUid = this.nextUid;
+            for (User user : users) {
+                User written = user;
+                if (user.uid == 0 || user.userId == null || user.userId.isEmpty()) {
+                    int uid = user.uid;
+                    if (uid == 0) {
+                        while (taken.contains(freeUid)) {
+                            freeUid++;
+                        }
+                        uid = freeUid++;
+                    }
+                    String userId = user.userId == null || user.userId.isEmpty() ? String.valueOf(uid) : user.userId;
+                    written = new User(uid, user.name, user.privilege, user.password, user.groupId, userId, user.card);
+                }
+                try {
+                    packets.add(packUser(written.uid, written.name, written.privilege, written.password,
+                            written.groupId, written.userId, (int) written.card));
+                    pending.add(written);
+                } catch (Exception e) {
+                    result.fail(written, e);
+                }
+            }
+
+            if (!runBatch(pending, packets, DeviceConstants.CMD_USER_WRQ, "Can't set user", result)) {
+                return result;
+            }
+
+            for (User user : result.succeeded) {
+                if (this.nextUid <= user.uid) {
+                    this.nextUid = user.uid + 1;
+                }
+                if (this.nextUserId.equals(user.userId)) {
+                    this.nextUserId = String.valueOf(this.nextUid);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Deletes many users and refreshes the device data once at the end. Users with
+         * uid 0 are resolved by userId with a single user list download.
+         */
+        public BatchResult deleteUsers(Collection<User> users) throws Exception {
+            BatchResult result = new BatchResult();
+            List<User> byUserId = null;
+            List<User> pending = new ArrayList<>(users.size());
+            List<byte[]> packets = new ArrayList<>(users.size());
+            for (User user : users) {
+                int uid = user.uid;
+                if (uid == 0) {
+                    if (byUserId == null) {
+                        byUserId = getUsers();
+                    }
+                    uid = byUserId.stream().filter(u -> Objects.equals(u.userId, user.userId)).mapToInt(u -> u.uid)
+                            .findFirst().orElse(0);
+                    if (uid == 0) {
+                        result.fail(user, new ZKErrorResponse("Can't find user " + user.userId));
+                        continue;
+                    }
+                }
+                packets.add(Struct.pack("h", uid));
+                pending.add(user);
+            }
+
+            if (!runBatch(pending, packets, DeviceConstants.CMD_DELETE_USER, "Can't delete user", result)) {
+                return result;
+            }
+
+            for (User user : result.succeeded) {
+                if (user.uid != 0 && user.uid == (this.nextUid - 1)) {
+                    this.nextUid = user.uid;
+                }
+            }
+            return result;
+        }
+
+        // Sends one command per user without refreshing, then a single refreshData()
+        private boolean runBatch(List<User> users, List<byte[]> packets, int command, String error,
+                BatchResult result) throws Exception {
+            boolean aborted = false;
+            try {
+                for (int i = 0; i < users.size(); i++) {
+                    User user = users.get(i);
+                    try {
+                        Response cmdResponse = sendCommand(command, packets.get(i), 1024);
+                        if (cmdResponse.status) {
+                            result.succeeded.add(user);
+                        } else {
+                            result.fail(user, new ZKErrorResponse(error + " " + user.uid));
+                        }
+                    } catch (ZKNetworkError | ZKErrorConnection e) {
+                        // connection state unknown, don't keep writing into it; after a
+                        // timeout the reply may still come and be read as the next answer
+                        aborted = true;
+                        if (this.isConnect) {
+                            dropConnection();
+                        }
+                        for (int j = i; j < users.size(); j++) {
+                            result.fail(users.get(j), e);
+                        }
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                // users already written are only committed by the refresh
+                if (!aborted && !result.succeeded.isEmpty()) {
+                    refreshData();
+                }
             }
         }
 
@@ -1049,7 +1596,7 @@ public class Base {
                 return (User) ref;
             List<User> users = getUsers();
             for (User u : users) {
-                if (u.userId.equals(String.valueOf(ref))) {
+                if (Objects.equals(u.userId, String.valueOf(ref))) {
                     return u;
                 }
             }
@@ -1057,54 +1604,49 @@ public class Base {
         }
 
         public void HRSaveUserTemplates(List<Map.Entry<User, List<Finger>>> userTemplates) throws Exception {
-            ByteArrayOutputStream upack = new ByteArrayOutputStream();
-            ByteArrayOutputStream fpack = new ByteArrayOutputStream();
-            ByteArrayOutputStream table = new ByteArrayOutputStream();
-            int fnum = 0x10;
-            int tstart = 0;
-
-            for (Map.Entry<User, List<Finger>> entry : userTemplates) {
-                User user = entry.getKey();
-                if (user == null) {
-                    throw new ZKErrorResponse("Invalid user in usertemplates list");
-                }
-                List<Finger> fingers = entry.getValue();
-                if (this.userPacketSize == 28) {
-                    upack.writeBytes(user.repack29());
-                } else {
-                    upack.writeBytes(user.repack73());
-                }
-                for (Finger finger : fingers) {
-                    if (finger == null) {
-                        throw new ZKErrorResponse("Invalid finger template in usertemplates list");
-                    }
-                    byte[] tfp = finger.repack_only();
-                    table.writeBytes(Struct.pack("<bHbI", 2, user.uid, fnum + finger.fid, tstart));
-                    tstart += tfp.length;
-                    fpack.writeBytes(tfp);
-                }
-            }
+            saveUserTemplatesPacket(packUserTemplates(userTemplates, this.userPacketSize, textCodec().getCharset()));
+        }
 
-            byte[] head = Struct.pack("III", upack.size(), table.size(), fpack.size());
-            byte[] packet = concatAll(head, upack.toByteArray(), table.toByteArray(), fpack.toByteArray());
+        /**
+         * Uploads a buffer built by Base.packUserTemplates for this device's user packet
+         * size and charset and saves it. Lets one encoded buffer be reused for many devices.
+         */
+        public void saveUserTemplatesPacket(byte[] packet) throws Exception {
             sendWithBuffer(packet);
 
             byte[] commandString = Struct.pack("<IHH", 12, 0, 8);
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants._CMD_SAVE_USERTEMPS, commandString);
-            if (!(boolean) cmdResponse.get("status")) {
+            Response cmdResponse = sendCommand(DeviceConstants._CMD_SAVE_USERTEMPS, commandString);
+            if (!cmdResponse.status) {
                 throw new ZKErrorResponse("Can't save usertemplates");
             }
             refreshData();
         }
 
         private void sendWithBuffer(byte[] buffer) throws Exception {
+            ChunkTransferEvent event = new ChunkTransferEvent();
+            event.begin();
+            try {
+                doSendWithBuffer(buffer);
+            } finally {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.device = deviceName();
+                    event.operation = "sendWithBuffer";
+                    event.size = buffer.length;
+                    event.bytes = buffer.length;
+                    event.commit();
+                }
+            }
+        }
+
+        private void doSendWithBuffer(byte[] buffer) throws Exception {
             final int MAX_CHUNK = 1024;
             int size = buffer.length;
             freeData();
 
             byte[] commandString = Struct.pack("I", size);
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_PREPARE_DATA, commandString);
-            if (!(boolean) cmdResponse.get("status")) {
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_PREPARE_DATA, commandString);
+            if (!cmdResponse.status) {
                 throw new ZKErrorResponse("Can't prepare data");
             }
 
@@ -1112,18 +1654,21 @@ public class Base {
             int remain = size % MAX_CHUNK;
             int start = 0;
 
+            TransferProgress progress = beginTransfer("sendWithBuffer", size, packets + (remain > 0 ? 1 : 0));
             for (int i = 0; i < packets; i++) {
                 sendChunk(Arrays.copyOfRange(buffer, start, start + MAX_CHUNK));
                 start += MAX_CHUNK;
+                chunkDone(progress, MAX_CHUNK);
             }
             if (remain > 0) {
                 sendChunk(Arrays.copyOfRange(buffer, start, start + remain));
+                chunkDone(progress, remain);
             }
         }
 
         private boolean sendChunk(byte[] commandString) throws Exception {
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_DATA, commandString);
-            if ((boolean) cmdResponse.get("status")) {
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_DATA, commandString);
+            if (cmdResponse.status) {
                 return true;
             } else {
                 throw new ZKErrorResponse("Can't send chunk");
@@ -1132,15 +1677,15 @@ public class Base {
 
         public boolean deleteUserTemplate(int uid, int tempId, String userId) throws Exception {
             if (this.tcp && userId != null && !userId.isEmpty()) {
-                byte[] commandString = Struct.pack("<24sB", userId.getBytes(this.encoding), tempId);
-                Map<String, Object> cmdResponse = sendCommand(DeviceConstants._CMD_DEL_USER_TEMP, commandString);
-                return (boolean) cmdResponse.get("status");
+                byte[] commandString = Struct.pack("<24sB", textCodec().encode(userId), tempId);
+                Response cmdResponse = sendCommand(DeviceConstants._CMD_DEL_USER_TEMP, commandString);
+                return cmdResponse.status;
             }
 
             if (uid == 0) {
                 List<User> users = getUsers();
                 for (User u : users) {
-                    if (u.userId.equals(userId)) {
+                    if (Objects.equals(u.userId, userId)) {
                         uid = u.uid;
                         break;
                     }
@@ -1150,15 +1695,15 @@ public class Base {
             }
 
             byte[] commandString = Struct.pack("hb", uid, tempId);
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_DELETE_USERTEMP, commandString);
-            return (boolean) cmdResponse.get("status");
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_DELETE_USERTEMP, commandString);
+            return cmdResponse.status;
         }
 
         public boolean deleteUser(int uid, String userId) throws Exception {
             if (uid == 0) {
                 List<User> users = getUsers();
                 for (User u : users) {
-                    if (u.userId.equals(userId)) {
+                    if (Objects.equals(u.userId, userId)) {
                         uid = u.uid;
                         break;
                     }
@@ -1168,8 +1713,8 @@ public class Base {
             }
 
             byte[] commandString = Struct.pack("h", uid);
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_DELETE_USER, commandString);
-            if (!(boolean) cmdResponse.get("status")) {
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_DELETE_USER, commandString);
+            if (!cmdResponse.status) {
                 throw new ZKErrorResponse("Can't delete user");
             }
 
@@ -1185,7 +1730,7 @@ public class Base {
             if (uidStr == null || uidStr.isEmpty()) {
                 List<User> users = getUsers();
                 for (User u : users) {
-                    if (u.userId.equals(userId)) {
+                    if (Objects.equals(u.userId, userId)) {
                         uid = u.uid;
                         break;
                     }
@@ -1198,8 +1743,8 @@ public class Base {
 
             for (int retries = 0; retries < 100; retries++) {
                 byte[] commandString = Struct.pack("hb", uid, tempId);
-                Map<String, Object> cmdResponse = sendCommand(DeviceConstants._CMD_GET_USERTEMP, commandString, 1032);
-                byte[] data = receiveChunk();
+                Response cmdResponse = sendCommand(DeviceConstants._CMD_GET_USERTEMP, commandString, 1032);
+                byte[] data = receiveChunk(cmdResponse);
                 if (data != null) {
                     byte[] resp = Arrays.copyOf(data, data.length - 1);
                     if (resp.length >= 6
@@ -1208,12 +1753,11 @@ public class Base {
                     }
                     return new Finger(uid, tempId, 1, resp);
                 }
-                if (this.verbose)
-                    System.out.println("retry get_user_template");
+                this.metrics.retry("getUserTemplate");
+                log.debug("retry get_user_template");
             }
 
-            if (this.verbose)
-                System.out.println("Can't read/find finger");
+            log.debug("Can't read/find finger");
             return null;
         }
 
@@ -1223,44 +1767,74 @@ public class Base {
                 return new ArrayList<>();
 
             List<Finger> templates = new ArrayList<>();
-            ReadBufferResult result = readWithBuffer(DeviceConstants.CMD_DB_RRQ, DeviceConstants.FCT_FINGERTMP);
-            byte[] templatedata = result.data;
-            int size = result.size;
+            TableReadEvent readEvent = new TableReadEvent();
+            readEvent.begin();
+            RecordDecoder decoder = templateDecoder(templates::add);
+            int size = readWithBuffer(DeviceConstants.CMD_DB_RRQ, DeviceConstants.FCT_FINGERTMP, 0, decoder);
 
             if (size < 4) {
-                if (this.verbose)
-                    System.out.println("WRN: no user data");
-                return templates;
-            }
-
-            int totalSize = (int) Struct.unpack("i", Arrays.copyOfRange(templatedata, 0, 4))[0];
-            if (this.verbose) {
-                System.out.printf("get template total size %d, size %d len %d%n", totalSize, size, templatedata.length);
-            }
-
-            templatedata = Arrays.copyOfRange(templatedata, 4, templatedata.length);
-            while (totalSize > 0 && templatedata.length >= 6) {
-                Object[] header = Struct.unpack("HHbb", Arrays.copyOfRange(templatedata, 0, 6));
-                int recordSize = (int) header[0];
-                int uid = (int) header[1];
-                int fid = (byte) header[2];
-                int valid = (byte) header[3];
-
-                // byte[] sliced = Arrays.copyOfRange(templatedata, 6, size);
-                // String template = new String(sliced, 0, sliced.length, this.encoding);
-                byte[] template = Arrays.copyOfRange(templatedata, 6, recordSize);
-                Finger finger = new Finger(uid, fid, valid, template);
-                if (this.verbose)
-                    System.out.println(finger);
-
-                templates.add(finger);
-                templatedata = Arrays.copyOfRange(templatedata, recordSize, templatedata.length);
-                totalSize -= recordSize;
+                log.debug("WRN: no user data");
             }
+            log.debug("get template total size %d, size %d", decoder.getTotalSize(), size);
+            this.metrics.recordsDecoded("templates", templates.size(), decoder.getDecodeNanos());
+            commitReadEvent(readEvent, "templates", templates.size(), size, decoder.getDecodeNanos());
 
             return templates;
         }
 
+        /**
+         * Decoder for the template table (FCT_FINGERTMP) as read from the device
+         * or stored in a snapshot.
+         */
+        RecordDecoder templateDecoder(RecordListener<Finger> listener) {
+            return new RecordDecoder() {
+                @Override
+                protected int headerLength() {
+                    return 6;
+                }
+
+                @Override
+                protected int recordLength(ByteBuffer header) {
+                    return header.getShort(0) & 0xFFFF;
+                }
+
+                @Override
+                protected boolean boundedByTotalSize() {
+                    return true;
+                }
+
+                @Override
+                protected void record(ByteBuffer record) throws Exception {
+                    Finger finger = decodeTemplate(record);
+                    log.log(Level.TRACE, "%s", finger);
+                    listener.onRecord(finger);
+                }
+            };
+        }
+
+        // One template record: size H, uid H, fid b, valid b, template bytes
+        private Finger decodeTemplate(ByteBuffer record) {
+            int recordSize = record.getShort(0) & 0xFFFF;
+            int uid = record.getShort(2) & 0xFFFF;
+            int fid = record.get(4);
+            int valid = record.get(5);
+            byte[] template = new byte[recordSize - 6];
+            record.get(6, template);
+            return new Finger(uid, fid, valid, template);
+        }
+
+        private void commitReadEvent(TableReadEvent event, String table, int records, int bytes, long decodeNanos) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.device = deviceName();
+                event.table = table;
+                event.records = records;
+                event.bytes = bytes;
+                event.decodeTime = decodeNanos;
+                event.commit();
+            }
+        }
+
         public List<byte[]> splitByDelimiter(byte[] data, byte delimiter) {
             List<byte[]> parts = new ArrayList<>();
             int start = 0;
@@ -1280,6 +1854,15 @@ public class Base {
         }
 
         public List<User> getUsers() throws Exception {
+            return getUsers(true);
+        }
+
+        /**
+         * @param placeholderNames name users without a name "NN-userId" as getUsers()
+         *                         does; false keeps the empty name, for copying users
+         *                         to another device unchanged
+         */
+        List<User> getUsers(boolean placeholderNames) throws Exception {
             this.readSizes();
             if (this.users == 0) {
                 this.nextUid = 1;
@@ -1288,83 +1871,51 @@ public class Base {
             }
 
             List<User> users = new ArrayList<>();
-            int maxUid = 0;
-            ReadBufferResult result = readWithBuffer(DeviceConstants.CMD_USERTEMP_RRQ, DeviceConstants.FCT_USER);
-            byte[] userdata = result.data;
-            int size = result.size;
-
-            if (this.verbose) {
-                System.out.printf("user size %d (= %d)%n", size, userdata.length);
-            }
+            TableReadEvent readEvent = new TableReadEvent();
+            readEvent.begin();
+            RecordDecoder decoder = new RecordDecoder() {
+                @Override
+                protected void onTotalSize(int totalSize) throws Exception {
+                    userPacketSize = totalSize / ZK.this.users;
+                    if (userPacketSize != 28 && userPacketSize != 72) {
+                        log.debug("WRN packet size would be %d", userPacketSize);
+                    } else if (profile != null && profile.userPacketSize != userPacketSize) {
+                        profile.userPacketSize = userPacketSize;
+                        saveProfile();
+                    }
+                }
 
-            if (size <= 4) {
-                System.out.println("WRN: missing user data");
-                return new ArrayList<>();
-            }
+                @Override
+                protected int headerLength() {
+                    return userPacketSize == 28 ? 28 : 72;
+                }
 
-            int totalSize = (int) Struct.unpack("I", Arrays.copyOfRange(userdata, 0, 4))[0];
-            this.userPacketSize = totalSize / this.users;
+                @Override
+                protected int recordLength(ByteBuffer header) {
+                    return headerLength();
+                }
 
-            if (this.userPacketSize != 28 && this.userPacketSize != 72) {
-                if (this.verbose) {
-                    System.out.printf("WRN packet size would be %d%n", this.userPacketSize);
+                @Override
+                protected void record(ByteBuffer record) throws Exception {
+                    users.add(decodeUser(record, placeholderNames));
                 }
-            }
+            };
+            int size = readWithBuffer(DeviceConstants.CMD_USERTEMP_RRQ, DeviceConstants.FCT_USER, 0, decoder);
+            log.debug("user size %d", size);
 
-            userdata = Arrays.copyOfRange(userdata, 4, userdata.length);
+            if (size <= 4) {
+                log.debug("WRN: missing user data");
+                return new ArrayList<>();
+            }
 
-            if (this.userPacketSize == 28) {
-                while (userdata.length >= 28) {
-                    byte[] chunk = Arrays.copyOf(userdata, 28);
-                    Object[] fields = Struct.unpack("<HB5s8sIxBhI", chunk);
-                    int uid = (int) fields[0];
-                    int privilege = (int) fields[1];
-                    String password = new String((byte[]) fields[2], this.encoding).split("\0")[0];
-                    String name = new String((byte[]) fields[3], this.encoding).split("\0")[0].trim();
-                    int card = (int) fields[4];
-                    String groupId = String.valueOf(fields[5]);
-                    String userId = String.valueOf(fields[7]);
-
-                    if (uid > maxUid)
-                        maxUid = uid;
-                    if (name.isEmpty())
-                        name = "NN-" + userId;
-
-                    users.add(new User(uid, name, privilege, password, groupId, userId, card));
-
-                    if (this.verbose) {
-                        System.out.printf("[6]user: %d %d %s %s %d %s %d %s%n",
-                                uid, privilege, password, name, card, groupId, (int) fields[6], userId);
-                    }
+            this.metrics.recordsDecoded("users", users.size(), decoder.getDecodeNanos());
+            commitReadEvent(readEvent, "users", users.size(), size, decoder.getDecodeNanos());
 
-                    userdata = Arrays.copyOfRange(userdata, 28, userdata.length);
-                }
-            } else {
-                while (userdata.length >= 72) {
-                    byte[] chunk = Arrays.copyOf(userdata, 72);
-                    Object[] fields = Struct.unpack("<HB8s24sIx7sx24s", chunk);
-                    int uid = (int) fields[0];
-                    int privilege = (int) fields[1];
-                    String password = new String(splitByDelimiter(((byte[]) fields[2]), (byte) 0x00).get(0),
-                            this.encoding);
-                    String name = new String(splitByDelimiter(((byte[]) fields[3]), (byte) 0x00).get(0), this.encoding)
-                            .strip();
-                    String groupId = new String(splitByDelimiter(((byte[]) fields[5]), (byte) 0x00).get(0),
-                            this.encoding).strip();
-                    String userId = new String(splitByDelimiter(((byte[]) fields[6]), (byte) 0x00).get(0),
-                            this.encoding);
-                    int card = (int) fields[4];
-
-                    if (uid > maxUid)
-                        maxUid = uid;
-                    if (name.isEmpty())
-                        name = "NN-" + userId;
-
-                    users.add(new User(uid, name, privilege, password, groupId, userId, card));
-                    userdata = Arrays.copyOfRange(userdata, 72, userdata.length);
-                }
+            int maxUid = 0;
+            for (User user : users) {
+                if (user.uid > maxUid)
+                    maxUid = user.uid;
             }
-
             maxUid++;
             this.nextUid = maxUid;
             this.nextUserId = String.valueOf(maxUid);
@@ -1382,14 +1933,84 @@ public class Base {
             return users;
         }
 
+        /**
+         * Decoder for a user table (FCT_USER) whose packet size is already known,
+         * e.g. one stored in a snapshot.
+         */
+        RecordDecoder userDecoder(List<User> users, int packetSize, boolean placeholderNames) {
+            return new RecordDecoder() {
+                @Override
+                protected int headerLength() {
+                    return packetSize;
+                }
+
+                @Override
+                protected int recordLength(ByteBuffer header) {
+                    return packetSize;
+                }
+
+                @Override
+                protected void record(ByteBuffer record) throws Exception {
+                    users.add(decodeUser(record, placeholderNames));
+                }
+            };
+        }
+
+        private User decodeUser(ByteBuffer record, boolean placeholderNames) throws Exception {
+            byte[] packet = new byte[record.remaining()];
+            record.get(packet);
+            return decodeUser(packet, placeholderNames);
+        }
+
+        private User decodeUser(byte[] packet) throws Exception {
+            return decodeUser(packet, true);
+        }
+
+        // One user packet, 28 bytes (zk6) or 72 bytes (zk8)
+        private User decodeUser(byte[] packet, boolean placeholderNames) throws Exception {
+            if (packet.length == 28) {
+                Object[] fields = Struct.unpack("<HB5s8sIxBhI", packet);
+                int uid = (int) fields[0];
+                int privilege = (int) fields[1];
+                String password = textCodec().decode((byte[]) fields[2]);
+                String name = textCodec().decode((byte[]) fields[3]).trim();
+                int card = (int) fields[4];
+                String groupId = String.valueOf(fields[5]);
+                String userId = String.valueOf(fields[7]);
+
+                if (name.isEmpty() && placeholderNames)
+                    name = "NN-" + userId;
+
+                if (log.isTrace()) {
+                    log.log(Level.TRACE, "[6]user: %d %d %s %s %d %s %d %s",
+                            uid, privilege, password, name, card, groupId, (int) fields[6], userId);
+                }
+                return new User(uid, name, privilege, password, groupId, userId, card);
+            }
+
+            Object[] fields = Struct.unpack("<HB8s24sIx7sx24s", packet);
+            int uid = (int) fields[0];
+            int privilege = (int) fields[1];
+            String password = textCodec().decode((byte[]) fields[2]);
+            String name = textCodec().decode((byte[]) fields[3]).strip();
+            String groupId = textCodec().decode((byte[]) fields[5]).strip();
+            String userId = textCodec().decode((byte[]) fields[6]);
+            int card = (int) fields[4];
+
+            if (name.isEmpty() && placeholderNames)
+                name = "NN-" + userId;
+
+            return new User(uid, name, privilege, password, groupId, userId, card);
+        }
+
         public boolean cancelCapture() throws Exception {
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_CANCELCAPTURE);
-            return (boolean) cmdResponse.get("status");
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_CANCELCAPTURE);
+            return cmdResponse.status;
         }
 
         public boolean verifyUser() throws Exception {
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_STARTVERIFY);
-            if ((boolean) cmdResponse.get("status")) {
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_STARTVERIFY);
+            if (cmdResponse.status) {
                 return true;
             } else {
                 throw new ZKErrorResponse("Can't Verify");
@@ -1398,16 +2019,22 @@ public class Base {
 
         public void registerEvent(int flags) throws Exception {
             byte[] commandString = Struct.pack("I", flags);
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_REG_EVENT, commandString);
-            if (!(boolean) cmdResponse.get("status")) {
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_REG_EVENT, commandString);
+            if (!cmdResponse.status) {
                 throw new ZKErrorResponse("Can't register events " + flags);
             }
+            this.eventFlags = flags;
+        }
+
+        // Event flags last registered in this session, 0 = none
+        public int getEventFlags() {
+            return this.eventFlags;
         }
 
         public boolean setSdkBuild1() throws Exception {
             byte[] commandString = "SDKBuild=1".getBytes();
-            Map<String, Object> cmdResponse = sendCommand(DeviceConstants.CMD_OPTIONS_WRQ, commandString);
-            return (boolean) cmdResponse.get("status");
+            Response cmdResponse = sendCommand(DeviceConstants.CMD_OPTIONS_WRQ, commandString);
+            return cmdResponse.status;
         }
 
         public boolean enrollUser(int uid, int tempId, String userId) throws Exception {
@@ -1432,121 +2059,113 @@ public class Base {
             }
 
             cancelCapture();
-            Map<String, Object> cmdResponse = sendCommand(command, commandString);
-            if (!(Boolean) cmdResponse.get("status")) {
+            Response cmdResponse = sendCommand(command, commandString);
+            if (!cmdResponse.status) {
                 throw new ZKErrorResponse(String.format("Can't Enroll user #%d [%d]", uid, tempId));
             }
 
-            this.tcpSocket.setSoTimeout(60000);
-            this.udpSocket.setSoTimeout(60000);
-            int attempts = 3;
+            try {
+                // the user gets up to a minute per finger, unless the deadline ends sooner
+                setSocketTimeout(this.deadline.cap(60000));
+                int attempts = 3;
 
-            while (attempts > 0) {
-                if (this.verbose)
-                    System.out.printf("A:%d esperando primer regevent%n", attempts);
-                byte[] dataRecv = recvBytes(1032);
-                ackOk();
-                if (this.verbose)
-                    System.out.println(BinUtils.byteArrayToHex(dataRecv));
+                while (attempts > 0) {
+                    log.debug("A:%d esperando primer regevent", attempts);
+                    byte[] dataRecv = recvBytes(1032);
+                    ackOk();
+                    log.hex(Level.DEBUG, "", dataRecv);
 
-                if (this.tcp) {
-                    if (dataRecv.length > 16) {
-                        int res = (int) Struct.unpack("H", Arrays.copyOfRange(padRight(dataRecv, 24), 16, 18))[0];
-                        if (this.verbose)
-                            System.out.printf("res %d%n", res);
-                        if (res == 0 || res == 6 || res == 4) {
-                            if (this.verbose)
-                                System.out.println("Possible timeout or registration failed");
-                            break;
+                    if (this.tcp) {
+                        if (dataRecv.length > 16) {
+                            int res = (int) Struct.unpack("H", Arrays.copyOfRange(padRight(dataRecv, 24), 16, 18))[0];
+                            log.debug("res %d", res);
+                            if (res == 0 || res == 6 || res == 4) {
+                                log.debug("Possible timeout or registration failed");
+                                break;
+                            }
                         }
-                    }
-                } else {
-                    if (dataRecv.length > 8) {
-                        int res = (int) Struct.unpack("H", Arrays.copyOfRange(padRight(dataRecv, 16), 8, 10))[0];
-                        if (this.verbose)
-                            System.out.printf("res %d%n", res);
-                        if (res == 6 || res == 4) {
-                            if (this.verbose)
-                                System.out.println("Possible timeout");
-                            break;
+                    } else {
+                        if (dataRecv.length > 8) {
+                            int res = (int) Struct.unpack("H", Arrays.copyOfRange(padRight(dataRecv, 16), 8, 10))[0];
+                            log.debug("res %d", res);
+                            if (res == 6 || res == 4) {
+                                log.debug("Possible timeout");
+                                break;
+                            }
                         }
                     }
-                }
 
-                if (this.verbose)
-                    System.out.printf("A:%d waiting for 2nd regevent%n", attempts);
-                dataRecv = recvBytes(1032);
-                ackOk();
-                if (this.verbose)
-                    System.out.println(BinUtils.byteArrayToHex(dataRecv));
+                    log.debug("A:%d waiting for 2nd regevent", attempts);
+                    dataRecv = recvBytes(1032);
+                    ackOk();
+                    log.hex(Level.DEBUG, "", dataRecv);
 
-                if (this.tcp) {
-                    if (dataRecv.length > 8) {
-                        int res = (int) Struct.unpack("H", Arrays.copyOfRange(padRight(dataRecv, 24), 16, 18))[0];
-                        if (this.verbose)
-                            System.out.printf("res %d%n", res);
-                        if (res == 6 || res == 4) {
-                            if (this.verbose)
-                                System.out.println("Possible timeout or registration failed");
-                            break;
-                        } else if (res == 0x64) {
-                            if (this.verbose)
-                                System.out.println("ok, continue?");
-                            attempts--;
+                    if (this.tcp) {
+                        if (dataRecv.length > 8) {
+                            int res = (int) Struct.unpack("H", Arrays.copyOfRange(padRight(dataRecv, 24), 16, 18))[0];
+                            log.debug("res %d", res);
+                            if (res == 6 || res == 4) {
+                                log.debug("Possible timeout or registration failed");
+                                break;
+                            } else if (res == 0x64) {
+                                log.debug("ok, continue?");
+                                attempts--;
+                            }
                         }
-                    }
-                } else {
-                    if (dataRecv.length > 8) {
-                        int res = (int) Struct.unpack("H", Arrays.copyOfRange(padRight(dataRecv, 16), 8, 10))[0];
-                        if (this.verbose)
-                            System.out.printf("res %d%n", res);
-                        if (res == 6 || res == 4) {
-                            if (this.verbose)
-                                System.out.println("Possible timeout or registration failed");
-                            break;
-                        } else if (res == 0x64) {
-                            if (this.verbose)
-                                System.out.println("ok, continue?");
-                            attempts--;
+                    } else {
+                        if (dataRecv.length > 8) {
+                            int res = (int) Struct.unpack("H", Arrays.copyOfRange(padRight(dataRecv, 16), 8, 10))[0];
+                            log.debug("res %d", res);
+                            if (res == 6 || res == 4) {
+                                log.debug("Possible timeout or registration failed");
+                                break;
+                            } else if (res == 0x64) {
+                                log.debug("ok, continue?");
+                                attempts--;
+                            }
                         }
                     }
                 }
-            }
 
-            if (attempts == 0) {
-                byte[] dataRecv = recvBytes(1032);
-                ackOk();
-                if (this.verbose)
-                    System.out.println(BinUtils.byteArrayToHex(dataRecv));
+                if (attempts == 0) {
+                    byte[] dataRecv = recvBytes(1032);
+                    ackOk();
+                    log.hex(Level.DEBUG, "", dataRecv);
 
-                int res;
-                if (tcp) {
-                    res = (int) Struct.unpack("H", Arrays.copyOfRange(padRight(dataRecv, 24), 16, 18))[0];
-                } else {
-                    res = (int) Struct.unpack("H", Arrays.copyOfRange(padRight(dataRecv, 16), 8, 10))[0];
+                    int res;
+                    if (tcp) {
+                        res = (int) Struct.unpack("H", Arrays.copyOfRange(padRight(dataRecv, 24), 16, 18))[0];
+                    } else {
+                        res = (int) Struct.unpack("H", Arrays.copyOfRange(padRight(dataRecv, 16), 8, 10))[0];
+                    }
+                    log.debug("res %d", res);
+
+                    if (res == 5)
+                        log.debug("finger duplicate");
+                    if (res == 6 || res == 4)
+                        log.debug("possible timeout");
+
+                    if (res == 0) {
+                        int size = (int) Struct.unpack("H", Arrays.copyOfRange(padRight(dataRecv, 16), 10, 12))[0];
+                        int pos = (int) Struct.unpack("H", Arrays.copyOfRange(padRight(dataRecv, 16), 12, 14))[0];
+                        log.debug("enroll ok %d %d", size, pos);
+                        done = true;
+                    }
                 }
-                if (this.verbose)
-                    System.out.printf("res %d%n", res);
-
-                if (res == 5 && this.verbose)
-                    System.out.println("finger duplicate");
-                if ((res == 6 || res == 4) && this.verbose)
-                    System.out.println("possible timeout");
-
-                if (res == 0) {
-                    int size = (int) Struct.unpack("H", Arrays.copyOfRange(padRight(dataRecv, 16), 10, 12))[0];
-                    int pos = (int) Struct.unpack("H", Arrays.copyOfRange(padRight(dataRecv, 16), 12, 14))[0];
-                    if (this.verbose)
-                        System.out.printf("enroll ok %d %d%n", size, pos);
-                    done = true;
+            } finally {
+                // the device stays in enroll mode until told otherwise, so this
+                // runs with the plain timeout even after the deadline passed
+                setSocketTimeout(this.timeout * 1000);
+                Deadline bound = this.deadline;
+                this.deadline = Deadline.NONE;
+                try {
+                    registerEvent(0); // TODO: test
+                    cancelCapture();
+                    verifyUser();
+                } finally {
+                    this.deadline = bound;
                 }
             }
-
-            this.tcpSocket.setSoTimeout(this.timeout);
-            this.udpSocket.setSoTimeout(this.timeout);
-            registerEvent(0); // TODO: test
-            cancelCapture();
-            verifyUser();
             return done;
         }
 
@@ -1559,11 +2178,146 @@ public class Base {
         // Helper methods
         private byte[] recvBytes(int length) throws IOException {
             byte[] buffer = new byte[length];
-            DataInputStream in = new DataInputStream(this.tcpSocket.getInputStream());
-            int read = in.read(buffer);
+            if (!this.tcp) {
+                DatagramPacket packet = new DatagramPacket(buffer, length);
+                this.udpSocket.receive(packet);
+                this.metrics.bytesReceived(packet.getLength());
+                return Arrays.copyOf(buffer, packet.getLength());
+            }
+            int read = this.tcpReader.read(buffer, 0, length);
+            if (read < 0) {
+                throw new IOException("Connection closed by device");
+            }
+            this.metrics.bytesReceived(read);
             return Arrays.copyOf(buffer, read);
         }
 
+        /**
+         * Runs a task under a total deadline. Every command, chunk read and retry
+         * inside it waits at most for what is left of the deadline, and the task
+         * fails with ZKDeadlineExceeded once it has passed. Nested deadlines keep
+         * the earlier one.
+         */
+        public <T> T withDeadline(Deadline deadline, ZKTask<T> task) throws Exception {
+            Deadline outer = this.deadline;
+            this.deadline = outer.min(deadline);
+            try {
+                return task.run(this);
+            } finally {
+                this.deadline = outer;
+                if (this.isConnect) {
+                    try {
+                        setSocketTimeout(outer.isExpired() ? 1 : outer.cap(this.timeout * 1000));
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        public <T> T withDeadline(Duration budget, ZKTask<T> task) throws Exception {
+            return withDeadline(Deadline.after(budget), task);
+        }
+
+        public Deadline getDeadline() {
+            return this.deadline;
+        }
+
+        /**
+         * Runs a task with progress reporting and cancellation for its chunked
+         * transfers (readWithBuffer, sendWithBuffer and the calls built on them).
+         *
+         * @param listener progress callback, may be null
+         * @param token    checked between chunks, may be null
+         */
+        public <T> T withTransfer(TransferListener listener, CancellationToken token, ZKTask<T> task)
+                throws Exception {
+            TransferListener outerListener = this.transferListener;
+            CancellationToken outerToken = this.cancellation;
+            this.transferListener = listener;
+            this.cancellation = token;
+            try {
+                return task.run(this);
+            } finally {
+                this.transferListener = outerListener;
+                this.cancellation = outerToken;
+            }
+        }
+
+        private TransferProgress beginTransfer(String operation, long totalBytes, int totalChunks) throws Exception {
+            this.transferWasEnabled = this.isEnabled;
+            checkCancelled();
+            if (this.transferListener == null) {
+                return null;
+            }
+            TransferProgress progress = new TransferProgress(operation, totalBytes, totalChunks);
+            this.transferListener.onProgress(progress);
+            return progress;
+        }
+
+        private void chunkDone(TransferProgress progress, int bytes) throws Exception {
+            if (progress != null) {
+                progress.advance(bytes);
+                this.transferListener.onProgress(progress);
+            }
+            checkCancelled();
+        }
+
+        // On cancel, drops the device buffer and puts the device back in the enabled
+        // state it had when the transfer began (a caller's disableDevice() is kept)
+        private void checkCancelled() throws Exception {
+            if (this.cancellation == null || !this.cancellation.isCancelled()) {
+                return;
+            }
+            log.debug("transfer cancelled, cleaning up");
+            try {
+                freeData();
+                if (this.transferWasEnabled) {
+                    enableDevice();
+                }
+            } catch (ZKErrorResponse | ZKNetworkError e) {
+                log.debug("cleanup after cancel failed: %s", e.getMessage());
+            }
+            this.cancellation.throwIfCancelled();
+        }
+
+        // Sets the read timeout for the next wait, cut down to the time left of the deadline
+        private void applyDeadline(int millis) throws ZKNetworkError {
+            if (this.deadline.isNone()) {
+                return;
+            }
+            try {
+                setSocketTimeout(this.deadline.cap(millis));
+            } catch (SocketException e) {
+                throw new ZKNetworkError(e.getMessage());
+            }
+        }
+
+        // Read timeout of the socket in use
+        private void setSocketTimeout(int millis) throws SocketException {
+            if (this.tcp) {
+                this.tcpSocket.setSoTimeout(millis);
+            } else {
+                this.udpSocket.setSoTimeout(millis);
+            }
+        }
+
+        /**
+         * Closes the sockets without talking to the device, for when the link is
+         * already gone. {@link #connect()} opens new ones.
+         */
+        public void dropConnection() {
+            this.isConnect = false;
+            try {
+                if (this.tcpSocket != null) {
+                    this.tcpSocket.close();
+                }
+            } catch (IOException ignored) {
+            }
+            if (this.udpSocket != null) {
+                this.udpSocket.close();
+            }
+        }
+
         public void liveCapture(int newTimeout, EventListener listener) throws Exception {
             boolean wasEnabled = this.isEnabled;
             List<User> users = getUsers();
@@ -1575,17 +2329,15 @@ public class Base {
                 enableDevice();
             }
 
-            if (this.verbose)
-                System.out.println("start live_capture");
+            log.debug("start live_capture");
 
             registerEvent(DeviceConstants.EF_ATTLOG);
-            this.tcpSocket.setSoTimeout(newTimeout * 1000);
-            this.udpSocket.setSoTimeout(newTimeout * 1000);
+            setSocketTimeout(this.deadline.cap(newTimeout * 1000));
             this.endLiveCapture = false;
 
-            while (!this.endLiveCapture) {
+            while (!this.endLiveCapture && !this.deadline.isExpired()) {
                 try {
-                    System.out.println("waiting for event");
+                    log.trace("waiting for event");
 
                     byte[] dataRecv = recvBytes(1032);
                     ackOk();
@@ -1605,14 +2357,12 @@ public class Base {
                     }
 
                     if ((int) header[0] != DeviceConstants.CMD_REG_EVENT) {
-                        if (this.verbose)
-                            System.out.printf("not event! %x%n", header[0]);
+                        log.debug("not event! %x", header[0]);
                         continue;
                     }
 
                     if (data.length == 0) {
-                        if (this.verbose)
-                            System.out.println("empty");
+                        log.debug("empty");
                         continue;
                     }
 
@@ -1666,34 +2416,39 @@ public class Base {
                     }
 
                 } catch (SocketTimeoutException e) {
-                    if (this.verbose)
-                        System.out.println("time out");
+                    log.debug("time out");
                     listener.onEvent(null); // keep watching
                 } catch (InterruptedIOException | RuntimeException e) {
-                    if (this.verbose)
-                        System.out.println("break");
+                    log.debug("break");
                     break;
+                } catch (IOException e) {
+                    this.isConnect = false;
+                    throw new ZKNetworkError("Live capture lost the connection: " + e.getMessage());
                 }
             }
 
-            if (this.verbose)
-                System.out.println("exit gracefully");
+            log.debug("exit gracefully");
 
-            this.tcpSocket.setSoTimeout(this.timeout * 1000);
-            this.udpSocket.setSoTimeout(this.timeout * 1000);
-            registerEvent(0);
+            setSocketTimeout(this.timeout * 1000);
+            Deadline bound = this.deadline;
+            this.deadline = Deadline.NONE; // cleanup still runs after the deadline
+            try {
+                registerEvent(0);
 
-            if (!wasEnabled) {
-                disableDevice();
+                if (!wasEnabled) {
+                    disableDevice();
+                }
+            } finally {
+                this.deadline = bound;
             }
         }
 
         public boolean clearData() throws Exception {
             int command = DeviceConstants.CMD_CLEAR_DATA;
             byte[] commandString = new byte[0];
-            Map<String, Object> cmdResponse = sendCommand(command, commandString);
+            Response cmdResponse = sendCommand(command, commandString);
 
-            if ((boolean) cmdResponse.get("status")) {
+            if (cmdResponse.status) {
                 this.nextUid = 1;
                 return true;
             } else {
@@ -1701,188 +2456,393 @@ public class Base {
             }
         }
 
-        public class TcpResult {
-            public final byte[] payload;
-            public final byte[] remainder;
-
-            public TcpResult(byte[] payload, byte[] remainder) {
-                this.payload = payload;
-                this.remainder = remainder;
+        /**
+         * Opens a multiplexed view of this session: commands are sent without waiting
+         * and each reply is routed to its request by replyId, so independent commands
+         * share one round-trip. Only for commands answered with a single packet
+         * (options, sizes, time...); bulk reads must go through the normal API after
+         * the multiplexer is closed.
+         */
+        public Multiplexer multiplex() throws ZKErrorConnection, ZKNetworkError {
+            if (!this.isConnect) {
+                throw new ZKErrorConnection("Instance is not connected.");
             }
+            if (this.multiplexer != null) {
+                throw new ZKErrorConnection("Session is already multiplexed.");
+            }
+            this.multiplexer = new Multiplexer();
+            return this.multiplexer;
         }
 
-        private TcpResult receiveTcpData(byte[] dataRecv, int size) throws IOException {
-            List<byte[]> dataChunks = new ArrayList<>();
-            int tcpLength = testTcpTop(dataRecv);
+        public class Multiplexer implements AutoCloseable {
+            private static final int POLL_MILLIS = 250;
+            private final Map<Integer, CompletableFuture<Response>> pending = new ConcurrentHashMap<>();
+            private final Set<Integer> inFlight = new HashSet<>(); // sent and not answered yet, guarded by itself
+            private final Thread reader;
+            private volatile boolean accepting = true;
+            private volatile boolean running = true;
+            private volatile long duplicates = 0;
+            private boolean reconnected = false;
+            private final int savedTimeout;
+            private int lastReplyId;
 
-            if (verbose)
-                System.out.printf("tcp_length %d, size %d%n", tcpLength, size);
-            if (tcpLength <= 0) {
-                if (verbose)
-                    System.out.println("Incorrect tcp packet");
-                return new TcpResult(null, new byte[0]);
+            private Multiplexer() throws ZKNetworkError {
+                this.lastReplyId = ZK.this.replyId;
+                try {
+                    // short poll so close() does not wait for a full socket timeout
+                    if (tcp) {
+                        this.savedTimeout = tcpSocket.getSoTimeout();
+                        tcpSocket.setSoTimeout(POLL_MILLIS);
+                    } else {
+                        this.savedTimeout = udpSocket.getSoTimeout();
+                        udpSocket.setSoTimeout(POLL_MILLIS);
+                    }
+                } catch (SocketException e) {
+                    throw new ZKNetworkError(e.getMessage());
+                }
+                this.reader = new Thread(this::readLoop, "zk-mux-" + deviceName());
+                this.reader.setDaemon(true);
+                this.reader.start();
             }
 
-            if ((tcpLength - 8) < size) {
-                if (verbose)
-                    System.out.println("tcp length too small... retrying");
-
-                TcpResult partial = receiveTcpData(dataRecv, tcpLength - 8);
-                dataChunks.add(partial.payload);
-                size -= partial.payload.length;
-
-                if (verbose)
-                    System.out.printf("new tcp DATA packet to fill missing %d%n", size);
-                byte[] newRecv = concat(partial.remainder, recvBytes(size + 16));
-
-                if (verbose)
-                    System.out.printf("new tcp DATA starting with %d bytes%n", newRecv.length);
-                TcpResult finalPart = receiveTcpData(newRecv, size);
-                dataChunks.add(finalPart.payload);
+            /**
+             * Sends a command and returns at once.
+             *
+             * @return future completed with the reply,
+             *         or exceptionally on timeout or network error
+             */
+            public synchronized CompletableFuture<Response> submit(int command, byte[] commandString) {
+                CompletableFuture<Response> future = new CompletableFuture<>();
+                if (!accepting) {
+                    future.completeExceptionally(new ZKErrorConnection("Multiplexer is closed."));
+                    return future;
+                }
 
-                if (verbose)
-                    System.out.printf("for missing %d received %d with extra %d%n",
-                            size, finalPart.payload.length, finalPart.remainder.length);
+                byte[] buf = createHeader(command, commandString, sessionId, lastReplyId);
+                int id = (int) Struct.unpack("<4H", Arrays.copyOfRange(buf, 0, 8))[3];
+                lastReplyId = id;
+                pending.put(id, future);
+                synchronized (inFlight) {
+                    inFlight.add(id);
+                }
+                future.orTimeout(timeout, TimeUnit.SECONDS).whenComplete((r, e) -> pending.remove(id, future));
 
-                return new TcpResult(concatAll(dataChunks), finalPart.remainder);
+                try {
+                    if (tcp) {
+                        byte[] top = createTcpTop(buf);
+                        tcpSocket.getOutputStream().write(top);
+                        metrics.bytesSent(top.length);
+                    } else {
+                        udpSocket.send(new DatagramPacket(buf, buf.length, address));
+                        metrics.bytesSent(buf.length);
+                    }
+                } catch (IOException e) {
+                    future.completeExceptionally(new ZKNetworkError(e.getMessage()));
+                }
+                return future;
             }
 
-            int received = dataRecv.length;
-            if (verbose)
-                System.out.printf("received %d, size %d%n", received, size);
-
-            int response = (int) Struct.unpack("HHHH", Arrays.copyOfRange(dataRecv, 8, 16))[0];
-            if (received >= (size + 32)) {
-                if (response == DeviceConstants.CMD_DATA) {
-                    byte[] payload = Arrays.copyOfRange(dataRecv, 16, size + 16);
-                    if (verbose)
-                        System.out.printf("resp complete len %d%n", payload.length);
-                    byte[] remainder = Arrays.copyOfRange(dataRecv, size + 16, dataRecv.length);
-                    return new TcpResult(payload, remainder);
-                } else {
-                    if (verbose)
-                        System.out.printf("incorrect response!!! %d%n", response);
-                    return new TcpResult(null, new byte[0]);
+            private void answered(int id) {
+                synchronized (inFlight) {
+                    inFlight.remove(id);
+                    inFlight.notifyAll();
                 }
-            } else {
-                if (verbose)
-                    System.out.printf("try DATA incomplete (actual valid %d)%n", received - 16);
-                dataChunks.add(Arrays.copyOfRange(dataRecv, 16, size + 16));
-                size -= (received - 16);
+            }
 
-                byte[] brokenHeader = new byte[0];
-                if (size < 0) {
-                    brokenHeader = Arrays.copyOfRange(dataRecv, size, dataRecv.length);
-                    if (verbose)
-                        System.out.println("broken " + BinUtils.byteArrayToHex(brokenHeader));
-                }
+            public CompletableFuture<Response> submit(int command) {
+                return submit(command, new byte[0]);
+            }
 
-                if (size > 0) {
-                    byte[] extra = receiveRawData(size);
-                    dataChunks.add(extra);
+            /**
+             * Reads several options with all requests in flight together.
+             *
+             * @param names option names, e.g. "~SerialNumber"
+             * @return option values, missing or failed options are left out
+             */
+            public Map<String, String> readOptions(String... names) {
+                Map<String, CompletableFuture<Response>> futures = new LinkedHashMap<>();
+                for (String name : names) {
+                    futures.put(name, submit(DeviceConstants.CMD_OPTIONS_RRQ, (name + "\u0000").getBytes()));
                 }
-
-                return new TcpResult(concatAll(dataChunks), brokenHeader);
+                Map<String, String> values = new LinkedHashMap<>();
+                futures.forEach((name, future) -> {
+                    try {
+                        Response reply = future.join();
+                        if (reply.status) {
+                            values.put(name, new String(extractValue(reply.payloadBytes())));
+                        }
+                    } catch (CompletionException e) {
+                        log.debug("option %s failed: %s", name, e.getCause());
+                    }
+                });
+                return values;
             }
-        }
 
-        private byte[] receiveRawData(int size) throws IOException {
-            List<byte[]> chunks = new ArrayList<>();
-            if (verbose)
-                System.out.printf("expecting %d bytes raw data%n", size);
+            /**
+             * Multiplexed {@link ZK#readSizes()}: the counters are stored on the session
+             * when the reply arrives.
+             */
+            public CompletableFuture<Boolean> readSizes() {
+                return submit(DeviceConstants.CMD_GET_FREE_SIZES).thenApply(reply -> {
+                    if (!reply.status) {
+                        throw new CompletionException(new ZKErrorResponse("can't read sizes"));
+                    }
+                    applySizes(reply.payloadBytes());
+                    return true;
+                });
+            }
 
-            while (size > 0) {
-                byte[] recv = recvBytes(size);
-                int received = recv.length;
+            /**
+             * Multiplexed {@link ZK#getTime()}.
+             */
+            public CompletableFuture<LocalDateTime> getTime() {
+                return submit(DeviceConstants.CMD_GET_TIME).thenApply(reply -> {
+                    if (!reply.status) {
+                        throw new CompletionException(new ZKErrorResponse("Can't get time"));
+                    }
+                    return decodeTime(Arrays.copyOf(reply.payloadBytes(), 4));
+                });
+            }
 
-                if (verbose)
-                    System.out.printf("partial recv %d%n", received);
-                if (received < 100 && verbose)
-                    System.out.println("   recv " + BinUtils.byteArrayToHex(recv));
+            /**
+             * @return true if close() had to replace the session because some reply
+             *         never arrived
+             */
+            public boolean isReconnected() {
+                return reconnected;
+            }
 
-                chunks.add(recv);
-                size -= received;
+            public int getPending() {
+                return pending.size();
+            }
 
-                if (verbose)
-                    System.out.printf("still need %d%n", size);
+            public long getDuplicates() {
+                return duplicates;
             }
 
-            return concatAll(chunks);
-        }
+            private void readLoop() {
+                byte[] buffer = new byte[64 * 1024];
+                while (running) {
+                    byte[] packet;
+                    try {
+                        packet = readPacket(buffer);
+                    } catch (SocketTimeoutException e) {
+                        continue; // futures time out on their own
+                    } catch (IOException e) {
+                        if (running) {
+                            failAll(new ZKNetworkError(e.getMessage()));
+                        }
+                        break;
+                    }
+                    if (packet == null || packet.length < 8)
+                        continue;
 
-        private byte[] receiveChunk() throws Exception {
-            if (this.response == DeviceConstants.CMD_DATA) {
-                if (tcp) {
-                    if (verbose)
-                        System.out.printf("_rc_DATA! is %d bytes, tcp length is %d%n", data.length, tcpLength);
-                    if (data.length < (tcpLength - 8)) {
-                        int need = (tcpLength - 8) - data.length;
-                        if (verbose)
-                            System.out.printf("need more data: %d%n", need);
-                        byte[] more = receiveRawData(need);
-                        return concat(data, more);
-                    } else {
-                        if (verbose)
-                            System.out.println("Enough data");
-                        return data;
+                    Response reply = new Response(packet, 0, packet.length);
+                    answered(reply.replyId);
+                    CompletableFuture<Response> future = pending.remove(reply.replyId);
+                    if (future == null) {
+                        duplicates++; // late, duplicated or unsolicited packet
+                        log.debug("mux: dropping reply %d for replyId %d", reply.code, reply.replyId);
+                        continue;
                     }
-                } else {
-                    if (verbose)
-                        System.out.printf("_rc len is %d%n", data.length);
-                    return data;
+                    future.complete(reply);
                 }
-            } else if (this.response == DeviceConstants.CMD_PREPARE_DATA) {
-                List<byte[]> chunks = new ArrayList<>();
-                int size = getDataSize();
-
-                if (verbose)
-                    System.out.printf("receive chunk: prepare data size is %d%n", size);
+            }
 
+            // One reply packet (header + payload), without the TCP top
+            private byte[] readPacket(byte[] buffer) throws IOException {
                 if (tcp) {
-                    byte[] dataRecv = data.length >= (8 + size)
-                            ? Arrays.copyOfRange(data, 8, data.length)
-                            : concat(Arrays.copyOfRange(data, 8, data.length), recvBytes(size + 32));
-
-                    TcpResult result = receiveTcpData(dataRecv, size);
-                    chunks.add(result.payload);
+                    int length = tcpReader.nextFrame(); // a poll timeout here consumes nothing
+                    byte[] packet = new byte[length];
+                    readFully(packet);
+                    metrics.bytesReceived(8 + packet.length);
+                    return packet;
+                }
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                udpSocket.receive(packet);
+                metrics.bytesReceived(packet.getLength());
+                return Arrays.copyOf(buffer, packet.getLength());
+            }
+
+            // Inside a frame a poll timeout is retried until the frame is complete
+            private void readFully(byte[] buffer) throws IOException {
+                int read = 0;
+                while (read < buffer.length) {
+                    try {
+                        int n = tcpReader.read(buffer, read, buffer.length - read);
+                        if (n < 0) {
+                            throw new IOException("Connection closed by device");
+                        }
+                        read += n;
+                    } catch (SocketTimeoutException e) {
+                        if (!running) {
+                            throw e;
+                        }
+                    }
+                }
+            }
 
-                    byte[] ack = result.payload.length < 16
-                            ? concat(result.remainder, recvBytes(16))
-                            : result.remainder;
+            private void failAll(Exception e) {
+                for (CompletableFuture<Response> future : pending.values()) {
+                    future.completeExceptionally(e);
+                }
+                pending.clear();
+            }
+
+            /**
+             * Stops taking requests, waits up to the session timeout for the replies
+             * to everything already sent (including requests whose future timed out)
+             * and hands the socket back to the blocking API. If some reply never
+             * arrives the session is reconnected, so a late reply cannot be read as
+             * the answer to the next blocking command; registered events and the
+             * disabled state are restored on the new session and
+             * {@link #isReconnected()} reports it.
+             *
+             * @throws ZKNetworkError if the session could not be reconnected or its
+             *                        state restored, the instance is then disconnected
+             */
+            @Override
+            public void close() throws ZKNetworkError {
+                synchronized (this) {
+                    accepting = false;
+                }
+                boolean drained = drain(TimeUnit.SECONDS.toMillis(timeout));
+                running = false;
+                try {
+                    reader.join(POLL_MILLIS * 4L);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                failAll(new ZKErrorConnection("Multiplexer closed."));
+                try {
+                    if (tcp) {
+                        tcpSocket.setSoTimeout(savedTimeout);
+                    } else {
+                        udpSocket.setSoTimeout(savedTimeout);
+                    }
+                } catch (SocketException ignored) {
+                }
+                ZK.this.replyId = lastReplyId;
+                ZK.this.multiplexer = null;
+
+                if (!drained || reader.isAlive()) {
+                    log.debug("mux: %d replies outstanding on close, reconnecting", inFlight.size());
+                    boolean wasEnabled = isEnabled;
+                    int flags = eventFlags;
+                    dropConnection();
+                    reconnected = true;
+                    metrics.retry("multiplexer");
+                    try {
+                        connect();
+                        if (flags != 0) {
+                            registerEvent(flags);
+                        }
+                        if (!wasEnabled) {
+                            disableDevice();
+                        }
+                    } catch (Exception e) {
+                        if (isConnect) {
+                            dropConnection();
+                        }
+                        throw new ZKNetworkError("Multiplexer closed with replies outstanding; reconnect failed: " + e.getMessage());
+                    }
+                }
+            }
 
-                    if (ack.length < 16) {
-                        if (verbose)
-                            System.out.printf("trying to complete broken ACK %d /16%n", ack.length);
-                        ack = concat(ack, recvBytes(16 - ack.length));
+            // Waits for the replies to every request sent, false if some are still missing
+            private boolean drain(long millis) {
+                long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+                synchronized (inFlight) {
+                    while (!inFlight.isEmpty()) {
+                        long left = TimeUnit.NANOSECONDS.toMillis(until - System.nanoTime());
+                        if (left <= 0 || !reader.isAlive()) {
+                            return false;
+                        }
+                        try {
+                            inFlight.wait(Math.min(left, POLL_MILLIS));
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return false;
+                        }
                     }
+                }
+                return true;
+            }
+        }
 
-                    if (testTcpTop(ack) == 0) {
-                        if (verbose)
-                            System.out.println("invalid chunk tcp ACK OK");
+        /**
+         * Reads the CMD_DATA frames that follow a CMD_PREPARE_DATA reply, up to the
+         * closing CMD_ACK_OK, straight into one array of {@code size} bytes.
+         * Returns null if the device answers anything else.
+         */
+        private byte[] receiveTcpFrames(int size) throws IOException, ZKNetworkError {
+            ChunkTransferEvent event = new ChunkTransferEvent();
+            event.begin();
+            byte[] chunk = new byte[size];
+            int received = 0;
+            try {
+                byte[] header = new byte[8];
+                while (true) {
+                    applyDeadline(this.timeout * 1000);
+                    int length = this.tcpReader.nextFrame();
+                    if (length < 8) {
+                        log.debug("Incorrect tcp packet");
                         return null;
                     }
-
-                    int responseCode = (int) Struct.unpack("HHHH", Arrays.copyOfRange(ack, 8, 16))[0];
-                    if (responseCode == DeviceConstants.CMD_ACK_OK) {
-                        if (verbose)
-                            System.out.println("chunk tcp ACK OK!");
-                        return concatAll(chunks);
+                    this.tcpReader.readFully(header, 0, 8);
+                    this.metrics.bytesReceived(16);
+                    int code = (header[0] & 0xFF) | (header[1] & 0xFF) << 8;
+                    int payload = length - 8;
+
+                    if (code == DeviceConstants.CMD_DATA) {
+                        int n = Math.min(payload, size - received);
+                        this.tcpReader.readFully(chunk, received, n);
+                        this.tcpReader.skip(payload - n);
+                        this.metrics.bytesReceived(payload);
+                        received += n;
+                        log.debug("tcp DATA %d bytes, %d of %d", payload, received, size);
+                    } else if (code == DeviceConstants.CMD_ACK_OK) {
+                        this.tcpReader.skip(payload);
+                        log.debug("chunk tcp ACK OK!");
+                        return received == size ? chunk : Arrays.copyOf(chunk, received);
+                    } else {
+                        this.tcpReader.skip(payload);
+                        log.hex(Level.DEBUG, "bad response ", header);
+                        return null;
                     }
+                }
+            } finally {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.device = deviceName();
+                    event.operation = "receiveTcpFrames";
+                    event.size = size;
+                    event.bytes = received;
+                    event.commit();
+                }
+            }
+        }
 
-                    if (verbose) {
-                        System.out.println("bad response " + BinUtils.byteArrayToHex(ack));
-                        System.out.println(BinUtils.byteArrayToHex(concatAll(chunks)));
-                    }
+        private byte[] receiveChunk(Response response) throws Exception {
+            if (response.code == DeviceConstants.CMD_DATA) {
+                byte[] data = response.payloadBytes();
+                log.debug("_rc len is %d", data.length);
+                return data;
+            } else if (response.code == DeviceConstants.CMD_PREPARE_DATA) {
+                int size = getDataSize(response);
 
-                    return null;
+                log.debug("receive chunk: prepare data size is %d", size);
+
+                if (tcp) {
+                    return receiveTcpFrames(size);
                 }
 
+                List<byte[]> chunks = new ArrayList<>();
                 while (true) {
                     byte[] packet = recvBytes(1032);
                     int responseCode = (int) Struct.unpack("<4H", Arrays.copyOfRange(packet, 0, 8))[0];
 
-                    if (verbose)
-                        System.out.printf("# packet response is: %d%n", responseCode);
+                    log.debug("# packet response is: %d", responseCode);
 
                     if (responseCode == DeviceConstants.CMD_DATA) {
                         chunks.add(Arrays.copyOfRange(packet, 8, packet.length));
@@ -1890,19 +2850,16 @@ public class Base {
                     } else if (responseCode == DeviceConstants.CMD_ACK_OK) {
                         break;
                     } else {
-                        if (verbose)
-                            System.out.println("broken!");
+                        log.debug("broken!");
                         break;
                     }
 
-                    if (verbose)
-                        System.out.printf("still needs %d%n", size);
+                    log.debug("still needs %d", size);
                 }
 
                 return concatAll(chunks);
             } else {
-                if (verbose)
-                    System.out.printf("invalid response %d%n", response);
+                log.debug("invalid response %d", response.code);
                 return null;
             }
         }
@@ -1942,21 +2899,160 @@ public class Base {
         }
 
         private byte[] readChunk(int start, int size) throws Exception {
-            for (int retries = 0; retries < 100; retries++) {
-                int command = DeviceConstants._CMD_READ_BUFFER;
-                byte[] commandString = Struct.pack("<ii", start, size);
-                int responseSize = tcp ? size + 32 : 1024 + 8;
+            if (!this.tcp && this.udpWindow > 0) {
+                return readChunkWindowed(start, size);
+            }
+            ChunkTransferEvent event = new ChunkTransferEvent();
+            event.begin();
+            int retries = 0;
+            byte[] data = null;
+            try {
+                for (; retries < 100; retries++) {
+                    this.deadline.check();
+                    int command = DeviceConstants._CMD_READ_BUFFER;
+                    byte[] commandString = Struct.pack("<ii", start, size);
+                    int responseSize = tcp ? size + 32 : 1024 + 8;
+
+                    Response response = sendCommand(command, commandString, responseSize);
+                    Thread.sleep(Math.min(300, this.deadline.remainingMillis()));
+
+                    try {
+                        data = receiveChunk(response);
+                    } catch (SocketTimeoutException e) {
+                        this.deadline.check();
+                        throw e;
+                    }
+
+                    if (data != null && data.length == size) {
+                        return data;
+                    }
+                    this.metrics.retry("readChunk");
+                }
+                throw new ZKErrorResponse(String.format("Can't read chunk %d:[%d]", start, size));
+            } finally {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.device = deviceName();
+                    event.operation = "readChunk";
+                    event.offset = start;
+                    event.size = size;
+                    event.bytes = data == null ? 0 : data.length;
+                    event.retries = retries;
+                    event.commit();
+                }
+            }
+        }
+
+        /**
+         * UDP read of one chunk as _CMD_READ_BUFFER requests of udpSubChunk bytes,
+         * with up to udpWindow of them in flight. Replies are matched to their
+         * sub-chunk by replyId, and when the link goes quiet only the sub-chunks
+         * still missing are requested again, instead of the whole chunk.
+         */
+        private byte[] readChunkWindowed(int start, int size) throws Exception {
+            ChunkTransferEvent event = new ChunkTransferEvent();
+            event.begin();
+            int subSize = Math.max(1, Math.min(this.udpSubChunk, size));
+            int parts = (size + subSize - 1) / subSize;
+            int[] filled = new int[parts];
+            boolean[] done = new boolean[parts];
+            Map<Integer, Integer> inFlight = new HashMap<>(); // replyId -> part
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+            for (int part = 0; part < parts; part++) {
+                queue.add(part);
+            }
+
+            byte[] chunk = new byte[size];
+            byte[] buffer = new byte[Math.max(subSize, 1024) + 16];
+            int remaining = parts;
+            int resent = 0;
+            int lastReplyId = this.replyId;
+            long giveUpAt = System.currentTimeMillis() + this.timeout * 1000L;
+            int oldTimeout = this.udpSocket.getSoTimeout();
+            this.udpSocket.setSoTimeout(this.deadline.cap(this.udpPollMillis));
+            try {
+                while (remaining > 0) {
+                    while (inFlight.size() < this.udpWindow && !queue.isEmpty()) {
+                        int part = queue.poll();
+                        int offset = part * subSize;
+                        filled[part] = 0;
+                        byte[] commandString = Struct.pack("<ii", start + offset, Math.min(subSize, size - offset));
+                        byte[] buf = createHeader(DeviceConstants._CMD_READ_BUFFER, commandString, this.sessionId,
+                                lastReplyId);
+                        lastReplyId = (buf[6] & 0xFF) | (buf[7] & 0xFF) << 8;
+                        inFlight.put(lastReplyId, part);
+                        this.udpSocket.send(new DatagramPacket(buf, buf.length, this.address));
+                        this.metrics.bytesSent(buf.length);
+                    }
 
-                sendCommand(command, commandString, responseSize);
-                Thread.sleep(300);
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    try {
+                        this.udpSocket.receive(packet);
+                    } catch (SocketTimeoutException e) {
+                        this.deadline.check();
+                        if (System.currentTimeMillis() > giveUpAt) {
+                            this.metrics.timeout(DeviceConstants._CMD_READ_BUFFER);
+                            throw new ZKErrorResponse(String.format("Can't read chunk %d:[%d], %d of %d parts missing",
+                                    start, size, remaining, parts));
+                        }
+                        log.debug("udp window: %d parts lost, asking again", inFlight.size());
+                        for (int part : inFlight.values()) {
+                            queue.add(part);
+                            this.metrics.retry("readChunkWindowed");
+                        }
+                        resent += inFlight.size();
+                        inFlight.clear();
+                        continue;
+                    }
+                    this.metrics.bytesReceived(packet.getLength());
+                    if (packet.getLength() < 8) {
+                        continue;
+                    }
 
-                byte[] data = receiveChunk();
+                    Response reply = new Response(buffer, 0, packet.getLength());
+                    Integer part = inFlight.get(reply.replyId);
+                    if (part == null) {
+                        continue; // late answer to a request that was already sent again
+                    }
+                    int offset = part * subSize;
+                    int length = Math.min(subSize, size - offset);
+
+                    if (reply.code == DeviceConstants.CMD_DATA) {
+                        int n = Math.min(reply.payloadLength(), length - filled[part]);
+                        reply.payload().get(chunk, offset + filled[part], n);
+                        filled[part] += n;
+                    } else if (reply.code == DeviceConstants.CMD_PREPARE_DATA) {
+                        continue; // data packets follow under the same replyId
+                    } else if (reply.code != DeviceConstants.CMD_ACK_OK || filled[part] < length) {
+                        inFlight.remove(reply.replyId);
+                        queue.add(part);
+                        resent++;
+                        this.metrics.retry("readChunkWindowed");
+                        continue;
+                    }
 
-                if (data != null && data.length == size) {
-                    return data;
+                    if (filled[part] == length && !done[part]) {
+                        done[part] = true;
+                        remaining--;
+                        inFlight.remove(reply.replyId);
+                        giveUpAt = System.currentTimeMillis() + this.timeout * 1000L;
+                    }
+                }
+                return chunk;
+            } finally {
+                this.udpSocket.setSoTimeout(oldTimeout);
+                this.replyId = lastReplyId;
+                event.end();
+                if (event.shouldCommit()) {
+                    event.device = deviceName();
+                    event.operation = "readChunkWindowed";
+                    event.offset = start;
+                    event.size = size;
+                    event.bytes = Arrays.stream(filled).sum();
+                    event.retries = resent;
+                    event.commit();
                 }
             }
-            throw new ZKErrorResponse(String.format("Can't read chunk %d:[%d]", start, size));
         }
 
         public class ReadBufferResult {
@@ -1978,174 +3074,320 @@ public class Base {
         }
 
         public ReadBufferResult readWithBuffer(int command, int fct, int ext) throws Exception {
-            int MAX_CHUNK = tcp ? 0xFFc0 : 16 * 1024;
+            return readWithBuffer(command, fct, ext, (ReadCheckpoint) null);
+        }
+
+        /**
+         * Buffered read that hands each chunk to {@code consumer} as it arrives
+         * instead of collecting the whole buffer, so memory use does not grow with
+         * the size of the table.
+         *
+         * @return number of bytes read
+         */
+        public int readWithBuffer(int command, int fct, int ext, ChunkConsumer consumer) throws Exception {
+            int maxChunk = maxChunk();
+            byte[] commandString = Struct.pack("<bhii", 1, command, fct, ext);
+
+            Response response = sendCommand(DeviceConstants._CMD_PREPARE_BUFFER, commandString, 1024);
+            if (!response.status)
+                throw new ZKErrorResponse("RWB Not supported");
+
+            if (response.code == DeviceConstants.CMD_DATA) {
+                byte[] inline = receiveChunk(response);
+                consumer.accept(ByteBuffer.wrap(inline));
+                consumer.end();
+                return inline.length;
+            }
+
+            if (response.payloadLength() < 5)
+                throw new ZKErrorResponse("RWB reply too short");
+            int size = response.payload().getInt(1);
+            log.debug("rwb: streaming %d bytes in chunks of %d", size, maxChunk);
+
+            TransferProgress progress = beginTransfer("readWithBuffer", size, (size + maxChunk - 1) / maxChunk);
+            for (int start = 0; start < size; start += maxChunk) {
+                int chunk = Math.min(maxChunk, size - start);
+                consumer.accept(ByteBuffer.wrap(readChunk(start, chunk)));
+                chunkDone(progress, chunk);
+            }
+            freeData();
+            consumer.end();
+            return size;
+        }
+
+        private int maxChunk() {
+            return tcp ? 0xFFc0 : 16 * 1024;
+        }
+
+        /**
+         * Buffered read that records every finished chunk in {@code checkpoint}.
+         * If the read fails part way, reconnect and call again with the same
+         * checkpoint: the buffer is prepared again and only the missing ranges
+         * are fetched. The checkpoint files are deleted once the read completes.
+         */
+        public ReadBufferResult readWithBuffer(int command, int fct, int ext, ReadCheckpoint checkpoint)
+                throws Exception {
+            int MAX_CHUNK = maxChunk();
             byte[] commandString = Struct.pack("<bhii", 1, command, fct, ext);
-            if (verbose)
-                System.out.println("rwb cs: " + Arrays.toString(commandString));
+            log.debug(() -> "rwb cs: " + Arrays.toString(commandString));
 
             int responseSize = 1024;
             int start = 0;
             List<byte[]> chunks = new ArrayList<>();
 
-            Map<String, Object> response = sendCommand(DeviceConstants._CMD_PREPARE_BUFFER, commandString, responseSize);
+            Response response = sendCommand(DeviceConstants._CMD_PREPARE_BUFFER, commandString, responseSize);
 
-            if (!(boolean) response.get("status"))
+            if (!response.status)
                 throw new ZKErrorResponse("RWB Not supported");
 
-            if (((int) response.get("code")) == DeviceConstants.CMD_DATA) {
-                if (tcp) {
-                    if (verbose)
-                        System.out.printf("DATA! is %d bytes, tcp length is %d%n", data.length, tcpLength);
-                    if (data.length < (tcpLength - 8)) {
-                        int need = (tcpLength - 8) - data.length;
-                        if (verbose)
-                            System.out.printf("need more data: %d%n", need);
-                        byte[] more = receiveRawData(need);
-                        return new ReadBufferResult(concat(data, more), data.length + more.length);
-                    } else {
-                        if (verbose)
-                            System.out.println("Enough data");
-                        return new ReadBufferResult(data, data.length);
-                    }
-                } else {
-                    return new ReadBufferResult(data, data.length);
+            if (response.code == DeviceConstants.CMD_DATA) {
+                byte[] data = response.payloadBytes();
+                log.debug("DATA! is %d bytes, tcp length is %d", data.length, tcpLength);
+                if (checkpoint != null) {
+                    checkpoint.delete(); // answered inline, a saved partial read is of no use
                 }
+                return new ReadBufferResult(data, data.length);
             }
 
-            int size = (int) Struct.unpack("I", Arrays.copyOfRange(data, 1, 5))[0];
-            if (verbose)
-                System.out.printf("size will be %d%n", size);
+            if (response.payloadLength() < 5)
+                throw new ZKErrorResponse("RWB reply too short");
+            int size = response.payload().getInt(1);
+            log.debug("size will be %d", size);
 
             int remain = size % MAX_CHUNK;
             int packets = (size - remain) / MAX_CHUNK;
-            if (verbose)
-                System.out.printf("rwb: #%d packets of max %d bytes, and extra %d bytes remain%n", packets, MAX_CHUNK,
+            log.debug("rwb: #%d packets of max %d bytes, and extra %d bytes remain", packets, MAX_CHUNK,
                         remain);
 
+            if (checkpoint != null) {
+                return readWithCheckpoint(checkpoint, command, fct, ext, size, MAX_CHUNK);
+            }
+
+            TransferProgress progress = beginTransfer("readWithBuffer", size, packets + (remain > 0 ? 1 : 0));
             for (int i = 0; i < packets; i++) {
                 chunks.add(readChunk(start, MAX_CHUNK));
                 start += MAX_CHUNK;
+                chunkDone(progress, MAX_CHUNK);
             }
             if (remain > 0) {
                 chunks.add(readChunk(start, remain));
                 start += remain;
+                chunkDone(progress, remain);
             }
 
             freeData();
-            if (verbose)
-                System.out.printf("_read w/chunk %d bytes%n", start);
+            log.debug("_read w/chunk %d bytes", start);
             return new ReadBufferResult(concatAll(chunks), start);
         }
 
+        private ReadBufferResult readWithCheckpoint(ReadCheckpoint checkpoint, int command, int fct, int ext,
+                int size, int maxChunk) throws Exception {
+            checkpoint.begin(command, fct, ext, size);
+            try {
+                log.debug("rwb: resuming with %d of %d bytes done", checkpoint.getCompletedBytes(), size);
+                TransferProgress progress = beginTransfer("readWithBuffer", size, (size + maxChunk - 1) / maxChunk);
+                for (int start = 0; start < size; start += maxChunk) {
+                    int chunk = Math.min(maxChunk, size - start);
+                    if (!checkpoint.isDone(start, chunk)) {
+                        checkpoint.complete(start, readChunk(start, chunk));
+                    }
+                    chunkDone(progress, chunk);
+                }
+                freeData();
+                byte[] data = checkpoint.readAll();
+                checkpoint.delete();
+                return new ReadBufferResult(data, size);
+            } finally {
+                checkpoint.close();
+            }
+        }
+
         public List<Attendance> getAttendance() throws Exception {
             readSizes();
             if (records == 0)
                 return new ArrayList<>();
 
             List<User> users = getUsers();
-            if (verbose)
-                System.out.println(users);
+            log.debug("%s", users);
 
             List<Attendance> attendances = new ArrayList<>();
-            ReadBufferResult result = readWithBuffer(DeviceConstants.CMD_ATTLOG_RRQ);
-            byte[] attendanceData = result.data;
-            int size = result.size;
-
-            if (size < 4) {
-                if (verbose)
-                    System.out.println("WRN: no attendance data");
-                return new ArrayList<>();
-            }
-
-            int totalSize = (int) Struct.unpack("I", Arrays.copyOfRange(attendanceData, 0, 4))[0];
-            int recordSize = totalSize / records;
-            if (verbose)
-                System.out.println("record_size is " + recordSize);
-
-            attendanceData = Arrays.copyOfRange(attendanceData, 4, attendanceData.length);
-
-            while (attendanceData.length >= recordSize) {
-                Attendance attendance = null;
+            TableReadEvent readEvent = new TableReadEvent();
+            readEvent.begin();
+            RecordDecoder decoder = new RecordDecoder() {
+                int recordSize;
+
+                @Override
+                protected void onTotalSize(int totalSize) {
+                    recordSize = attendanceRecordSize(totalSize);
+                }
 
-                if (recordSize == 8) {
-                    Object[] fields = Struct.unpack("HB4sB",
-                            Arrays.copyOfRange(padRight(attendanceData, recordSize), 0, recordSize));
-                    int uid = (int) fields[0];
-                    int status = (int) fields[1];
-                    byte[] timestampRaw = (byte[]) fields[2];
-                    int punch = (int) fields[3];
+                @Override
+                protected int headerLength() {
+                    return recordSize;
+                }
 
-                    if (this.verbose) {
-                        System.out.println(BinUtils.byteArrayToHex(Arrays.copyOfRange(attendanceData, 0, recordSize)));
-                    }
+                @Override
+                protected int recordLength(ByteBuffer header) {
+                    return recordSize;
+                }
 
-                    attendanceData = Arrays.copyOfRange(attendanceData, 8, attendanceData.length);
+                @Override
+                protected void record(ByteBuffer record) throws Exception {
+                    byte[] packet = new byte[record.remaining()];
+                    record.get(packet);
+                    log.hex(Level.TRACE, "", packet);
+                    attendances.add(decodeAttendance(packet, users));
+                }
+            };
+            int size = readWithBuffer(DeviceConstants.CMD_ATTLOG_RRQ, 0, 0, decoder);
 
-                    String userId = users.stream().filter(u -> u.uid == uid).map(u -> u.userId).findFirst()
-                            .orElse(String.valueOf(uid));
-                    LocalDateTime timestamp = decodeTime(timestampRaw);
-                    attendance = new Attendance(uid, userId, timestamp, status, punch);
+            if (size < 4) {
+                log.debug("WRN: no attendance data");
+                return new ArrayList<>();
+            }
+            this.metrics.recordsDecoded("attendance", attendances.size(), decoder.getDecodeNanos());
+            commitReadEvent(readEvent, "attendance", attendances.size(), size, decoder.getDecodeNanos());
 
-                    if (attendance != null) {
-                        attendances.add(attendance);
+            return attendances;
+        }
 
-                    }
-                } else if (recordSize == 16) {
-                    Object[] fields = Struct.unpack("<I4sBB2sI",
-                            Arrays.copyOfRange(padRight(attendanceData, recordSize), 0, recordSize));
-                    String userId = String.valueOf(fields[0]);
-                    byte[] timestampRaw = (byte[]) fields[1];
-                    int status = (int) fields[2];
-                    int punch = (int) fields[3];
-                    String finalUserId = userId;
-
-                    if (this.verbose) {
-                        System.out.println(BinUtils.byteArrayToHex(Arrays.copyOfRange(attendanceData, 0, recordSize)));
-                    }
+        private int attendanceRecordSize(int totalSize) {
+            int recordSize = totalSize / this.records;
+            log.debug("record_size is %d", recordSize);
+            boolean knownLayout = recordSize == 8 || recordSize == 16 || recordSize == 40;
+            if (!knownLayout && this.profile != null && this.profile.attendanceRecordSize > 0) {
+                // records count and buffer disagree (device still writing), trust the known layout
+                recordSize = this.profile.attendanceRecordSize;
+            } else if (knownLayout && this.profile != null && this.profile.attendanceRecordSize != recordSize) {
+                this.profile.attendanceRecordSize = recordSize;
+                saveProfile();
+            }
+            return recordSize;
+        }
 
-                    attendanceData = Arrays.copyOfRange(attendanceData, recordSize, attendanceData.length);
+        /**
+         * Streams the attendance log into an exporter as it is decoded, without
+         * building Attendance objects or a list. The device column is set to
+         * ip:port.
+         *
+         * @return number of records written
+         */
+        public int exportAttendance(AttendanceExporter exporter) throws Exception {
+            readSizes();
+            if (this.records == 0)
+                return 0;
 
-                    Optional<User> match = users.stream().filter(u -> u.userId.equals(finalUserId)).findFirst();
-                    int uid = match.map(u -> u.uid).orElse(Integer.parseInt(userId));
-                    userId = match.map(u -> u.userId).orElse(userId);
+            Map<Integer, User> byUid = new HashMap<>();
+            Map<Integer, User> byNumericId = new HashMap<>();
+            for (User user : getUsers()) {
+                byUid.put(user.uid, user);
+                try {
+                    byNumericId.put(Integer.parseInt(user.userId), user);
+                } catch (NumberFormatException ignored) {
+                    // only numeric user ids appear in 16 byte records
+                }
+            }
 
-                    LocalDateTime timestamp = decodeTime(timestampRaw);
-                    attendance = new Attendance(uid, userId, timestamp, status, punch);
-                    if (attendance != null) {
-                        attendances.add(attendance);
-                    }
+            exporter.setDevice(deviceName());
+            TableReadEvent readEvent = new TableReadEvent();
+            readEvent.begin();
+            RecordDecoder decoder = new RecordDecoder() {
+                int recordSize;
 
-                } else {
-                    byte[] dataTobePassed = Arrays.copyOfRange(padRight(attendanceData, 40), 0, 40);
-                    Object[] fields = Struct.unpack("<H24sB4sB8s",  dataTobePassed);
-                    int uid = (int) fields[0];
-                    String userId = new String(splitByDelimiter((byte[]) fields[1], (byte) 0x00).get(0), this.encoding);
-                    int status = (int) fields[2];
-                    byte[] timestampRaw = (byte[]) fields[3];
-                    int punch = (int) fields[4];
-
-                    if (this.verbose) {
-                        System.out.println(BinUtils.byteArrayToHex(Arrays.copyOfRange(attendanceData, 0, 40)));
-                    }
+                @Override
+                protected void onTotalSize(int totalSize) {
+                    recordSize = attendanceRecordSize(totalSize);
+                }
 
-                    attendanceData = Arrays.copyOfRange(attendanceData, recordSize, attendanceData.length);
+                @Override
+                protected int headerLength() {
+                    return recordSize;
+                }
 
-                    LocalDateTime timestamp = decodeTime(timestampRaw);
-                    attendance = new Attendance(uid, userId, timestamp, status, punch);
-                    if (attendance != null) {
-                        attendances.add(attendance);
+                @Override
+                protected int recordLength(ByteBuffer header) {
+                    return recordSize;
+                }
 
+                @Override
+                protected void record(ByteBuffer record) throws Exception {
+                    if (recordSize == 8) {
+                        int uid = record.getShort(0) & 0xFFFF;
+                        User user = byUid.get(uid);
+                        exporter.write(uid, user != null ? user.userId : String.valueOf(uid), record.getInt(3),
+                                record.get(2) & 0xFF, record.get(7) & 0xFF);
+                    } else if (recordSize == 16) {
+                        int numericId = record.getInt(0);
+                        User user = byNumericId.get(numericId);
+                        exporter.write(user != null ? user.uid : numericId,
+                                user != null ? user.userId : Integer.toUnsignedString(numericId), record.getInt(4),
+                                record.get(8) & 0xFF, record.get(9) & 0xFF);
+                    } else {
+                        int end = 2;
+                        while (end < 26 && end < record.limit() && record.get(end) != 0) {
+                            end++;
+                        }
+                        byte[] userId = new byte[end - 2];
+                        record.get(2, userId);
+                        exporter.write(record.getShort(0) & 0xFFFF, textCodec().decode(userId),
+                                record.limit() >= 31 ? record.getInt(27) : 0,
+                                record.limit() > 26 ? record.get(26) & 0xFF : 0,
+                                record.limit() > 31 ? record.get(31) & 0xFF : 0);
                     }
                 }
-            }
-
-            return attendances;
+            };
+            int size = readWithBuffer(DeviceConstants.CMD_ATTLOG_RRQ, 0, 0, decoder);
+            exporter.flush();
+
+            this.metrics.recordsDecoded("attendance", decoder.getRecords(), decoder.getDecodeNanos());
+            commitReadEvent(readEvent, "attendance", decoder.getRecords(), size, decoder.getDecodeNanos());
+            return decoder.getRecords();
+        }
+
+        // One attendance record, 8, 16 or 40 bytes; other sizes are read with the 40 byte layout
+        private Attendance decodeAttendance(byte[] record, List<User> users) throws Exception {
+            if (record.length == 8) {
+                Object[] fields = Struct.unpack("HB4sB", record);
+                int uid = (int) fields[0];
+                int status = (int) fields[1];
+                byte[] timestampRaw = (byte[]) fields[2];
+                int punch = (int) fields[3];
+
+                String userId = users.stream().filter(u -> u.uid == uid).map(u -> u.userId).findFirst()
+                        .orElse(String.valueOf(uid));
+                LocalDateTime timestamp = decodeTime(timestampRaw);
+                return new Attendance(uid, userId, timestamp, status, punch);
+            } else if (record.length == 16) {
+                Object[] fields = Struct.unpack("<I4sBB2sI", record);
+                String userId = String.valueOf(fields[0]);
+                byte[] timestampRaw = (byte[]) fields[1];
+                int status = (int) fields[2];
+                int punch = (int) fields[3];
+                String finalUserId = userId;
+
+                Optional<User> match = users.stream().filter(u -> u.userId.equals(finalUserId)).findFirst();
+                int uid = match.map(u -> u.uid).orElse(Integer.parseInt(userId));
+                userId = match.map(u -> u.userId).orElse(userId);
+
+                LocalDateTime timestamp = decodeTime(timestampRaw);
+                return new Attendance(uid, userId, timestamp, status, punch);
+            }
+
+            Object[] fields = Struct.unpack("<H24sB4sB8s", Arrays.copyOf(record, 40));
+            int uid = (int) fields[0];
+            String userId = textCodec().decode((byte[]) fields[1]);
+            int status = (int) fields[2];
+            byte[] timestampRaw = (byte[]) fields[3];
+            int punch = (int) fields[4];
+
+            LocalDateTime timestamp = decodeTime(timestampRaw);
+            return new Attendance(uid, userId, timestamp, status, punch);
         }
 
         public boolean clearAttendance() throws Exception {
             int command = DeviceConstants.CMD_CLEAR_ATTLOG;
-            Map<String, Object> cmdResponse = sendCommand(command);
-            if ((Boolean) cmdResponse.get("status")) {
+            Response cmdResponse = sendCommand(command);
+            if (cmdResponse.status) {
                 return true;
             } else {
                 throw new ZKErrorResponse("Can't clear response");
@@ -1,5 +1,7 @@
 package com.kmmaruf.zktjava;
 
+import java.util.Arrays;
+
 public class BinUtils {
     // Pack any number of integers (0–255) into a byte array
     public static byte[] pack(int... values) {
@@ -19,24 +21,54 @@ public class BinUtils {
         return result;
     }
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 16; i++) {
+            HEX_VALUES[HEX_DIGITS[i]] = (byte) i;
+            HEX_VALUES[Character.toUpperCase(HEX_DIGITS[i])] = (byte) i;
+        }
+    }
+
+    // Lowercase hex, two characters per byte
     public static String byteArrayToHex(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : bytes) {
-            sb.append(String.format("%02x", b));
+        return byteArrayToHex(bytes, 0, bytes.length);
+    }
+
+    public static String byteArrayToHex(byte[] bytes, int offset, int length) {
+        char[] out = new char[length * 2];
+        writeHex(bytes, offset, length, out, 0);
+        return new String(out);
+    }
+
+    // Writes 2 * length hex characters into out at outOffset
+    public static void writeHex(byte[] bytes, int offset, int length, char[] out, int outOffset) {
+        for (int i = 0; i < length; i++) {
+            int b = bytes[offset + i];
+            out[outOffset++] = HEX_DIGITS[(b >> 4) & 0xF];
+            out[outOffset++] = HEX_DIGITS[b & 0xF];
         }
-        return sb.toString();
     }
 
-    public static byte[] hexStringToByteArray(String s) {
+    public static byte[] hexStringToByteArray(CharSequence s) {
         int len = s.length();
         byte[] data = new byte[len / 2];
-        for (int i = 0; i < len; i += 2) {
-            data[i / 2] = (byte) ((Character.digit(s.charAt(i), 16) << 4)
-                    + Character.digit(s.charAt(i+1), 16));
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (hexValue(s.charAt(2 * i)) << 4 | hexValue(s.charAt(2 * i + 1)));
         }
         return data;
     }
 
+    private static int hexValue(char c) {
+        int value = c < 128 ? HEX_VALUES[c] : -1;
+        if (value < 0) {
+            throw new IllegalArgumentException("Invalid hex character '" + c + "'");
+        }
+        return value;
+    }
+
     // Packs an int into 4 bytes (little-endian)
     public static byte[] packIntLE(int value) {
         return new byte[] {
@@ -0,0 +1,26 @@
+package com.kmmaruf.zktjava;
+
+import com.kmmaruf.zktjava.exceptions.ZKCancelled;
+
+public class CancellationToken {
+    /**
+     * Set from any thread to stop a bulk transfer. Transfers check it between
+     * chunks, so the current chunk still completes and the device is left in a
+     * clean state.
+     */
+    private volatile boolean cancelled = false;
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void throwIfCancelled() throws ZKCancelled {
+        if (cancelled) {
+            throw new ZKCancelled("Transfer cancelled");
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.kmmaruf.zktjava;
+
+import java.nio.ByteBuffer;
+
+public interface ChunkConsumer {
+    /**
+     * Receives the chunks of a buffered read in order. The buffer is only valid
+     * during the call; copy anything that has to outlive it.
+     */
+    void accept(ByteBuffer chunk) throws Exception;
+
+    // Called once after the last chunk
+    default void end() throws Exception {
+    }
+}
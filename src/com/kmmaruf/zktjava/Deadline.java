@@ -0,0 +1,81 @@
+package com.kmmaruf.zktjava;
+
+import com.kmmaruf.zktjava.exceptions.ZKDeadlineExceeded;
+
+import java.time.Duration;
+
+public final class Deadline {
+    /**
+     * Point in time by which a whole operation has to finish. Blocking reads
+     * take their socket timeout from what is left, so the bound holds across
+     * chunks and retries rather than per read.
+     */
+    public static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+    private final long expiresAt; // System.nanoTime based
+
+    private Deadline(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    public static Deadline after(Duration budget) {
+        long now = System.nanoTime();
+        long nanos = budget.toNanos();
+        return new Deadline(nanos >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + nanos);
+    }
+
+    public boolean isNone() {
+        return expiresAt == Long.MAX_VALUE;
+    }
+
+    public boolean isExpired() {
+        return !isNone() && System.nanoTime() - expiresAt >= 0;
+    }
+
+    public long remainingMillis() {
+        if (isNone()) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, (expiresAt - System.nanoTime()) / 1_000_000);
+    }
+
+    // The earlier of the two
+    public Deadline min(Deadline other) {
+        if (other == null || other.isNone()) {
+            return this;
+        }
+        if (isNone()) {
+            return other;
+        }
+        return expiresAt - other.expiresAt <= 0 ? this : other;
+    }
+
+    /**
+     * Cuts a timeout down to the time left.
+     *
+     * @param millis timeout the call would use without a deadline
+     * @return timeout in milliseconds, at least 1
+     * @throws ZKDeadlineExceeded if no time is left
+     */
+    public int cap(int millis) throws ZKDeadlineExceeded {
+        if (isNone()) {
+            return millis;
+        }
+        long remaining = remainingMillis();
+        if (remaining <= 0) {
+            throw new ZKDeadlineExceeded("Deadline exceeded");
+        }
+        return (int) Math.max(1, Math.min(millis, remaining));
+    }
+
+    public void check() throws ZKDeadlineExceeded {
+        if (isExpired()) {
+            throw new ZKDeadlineExceeded("Deadline exceeded");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return isNone() ? "<Deadline>: none" : "<Deadline>: " + remainingMillis() + "ms left";
+    }
+}
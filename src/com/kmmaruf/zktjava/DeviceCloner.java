@@ -0,0 +1,264 @@
+package com.kmmaruf.zktjava;
+
+import com.kmmaruf.zktjava.exceptions.ZKErrorResponse;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class DeviceCloner {
+    /**
+     * Copies users and templates from one device to another, e.g. onto a
+     * replacement terminal. The template table of the source is decoded as it
+     * streams in, each user's templates are grouped and handed in batches to an
+     * uploader thread that writes them to the target with HRSaveUserTemplates,
+     * so the download and the upload overlap. The queue between them is
+     * bounded, so at most {@code queueCapacity} batches wait in memory however
+     * many templates the source holds. Records are repacked for the target's
+     * user packet size, converting between the 28 and 72 byte layouts. That size
+     * comes from {@code targetUserPacketSize}, the target's stored profile or a
+     * read of its user table; an empty target without a profile needs the
+     * setting.
+     *
+     * The user records themselves (a few dozen bytes each) are read up front,
+     * since templates only carry the uid.
+     */
+    private final Base.ZK source;
+    private final Base.ZK target;
+    public int batchSize = 100;     // users per HRSaveUserTemplates call
+    public int queueCapacity = 4;   // batches downloaded ahead of the upload
+    public int targetUserPacketSize = 0; // 28 or 72, 0 = measure on the target
+
+    public DeviceCloner(Base.ZK source, Base.ZK target) {
+        this.source = source;
+        this.target = target;
+    }
+
+    public static class Result {
+        public int users = 0;
+        public int templates = 0;
+        public int batches = 0;
+
+        @Override
+        public String toString() {
+            return String.format("<Clone>: [users: %d, templates: %d, batches: %d]", users, templates, batches);
+        }
+    }
+
+    private static final List<Map.Entry<User, List<Finger>>> END = Collections.emptyList();
+
+    /**
+     * Runs the clone. Both devices are disabled for the duration. Users on the
+     * target that are not on the source are left alone.
+     */
+    public Result run() throws Exception {
+        Result result = new Result();
+        BlockingQueue<List<Map.Entry<User, List<Finger>>>> queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        Uploader uploader = new Uploader(queue, result);
+
+        boolean sourceEnabled = source.isEnabled;
+        boolean targetEnabled = target.isEnabled;
+        if (sourceEnabled) {
+            source.disableDevice();
+        }
+        Thread thread = null;
+        try {
+            if (targetEnabled) {
+                target.disableDevice();
+            }
+            target.userPacketSize = targetUserPacketSize();
+            Map<Integer, User> pending = new LinkedHashMap<>();
+            for (User user : source.getUsers(false)) {
+                pending.put(user.uid, user);
+            }
+
+            thread = new Thread(uploader, "zk-clone");
+            thread.setDaemon(true);
+            thread.start();
+
+            Batcher batcher = new Batcher(queue, uploader, pending);
+            if (source.fingers > 0) {
+                boolean read = false;
+                try {
+                    source.readWithBuffer(DeviceConstants.CMD_DB_RRQ, DeviceConstants.FCT_FINGERTMP, 0,
+                            source.templateDecoder(batcher));
+                    read = true;
+                } finally {
+                    if (!read) {
+                        freeQuietly(source); // an aborted read leaves the buffer on the source
+                    }
+                }
+            }
+            batcher.flushUser();
+            // users without templates go last, with an empty template list
+            for (User user : pending.values()) {
+                batcher.add(user, Collections.emptyList());
+            }
+            batcher.flushBatch();
+            batcher.put(END);
+            thread.join();
+            thread = null;
+            if (uploader.failure != null) {
+                throw uploader.failure;
+            }
+        } finally {
+            if (thread != null) {
+                thread.interrupt();
+                thread.join();
+            }
+            try {
+                if (sourceEnabled) {
+                    source.enableDevice();
+                }
+            } finally {
+                if (targetEnabled) {
+                    target.enableDevice();
+                }
+            }
+        }
+        return result;
+    }
+
+    // The target's user record size; getUsers() measures it from the table size
+    private int targetUserPacketSize() throws Exception {
+        if (targetUserPacketSize == 28 || targetUserPacketSize == 72) {
+            return targetUserPacketSize;
+        }
+        DeviceProfile profile = target.getProfile();
+        if (profile != null && profile.hasUserPacketSize()) {
+            return profile.userPacketSize;
+        }
+        target.readSizes();
+        if (target.users > 0) {
+            target.getUsers();
+            if (target.userPacketSize == 28 || target.userPacketSize == 72) {
+                return target.userPacketSize;
+            }
+        }
+        throw new ZKErrorResponse("Can't tell the target's user packet size, set targetUserPacketSize");
+    }
+
+    private static void freeQuietly(Base.ZK zk) {
+        try {
+            zk.freeData();
+        } catch (Exception e) {
+            zk.log.debug("clone: can't free the source buffer: %s", e.getMessage());
+        }
+    }
+
+    // Groups consecutive templates of one uid and queues them in batches
+    private static class Batcher implements Base.RecordListener<Finger> {
+        private final BlockingQueue<List<Map.Entry<User, List<Finger>>>> queue;
+        private final Uploader uploader;
+        private final Map<Integer, User> pending;
+        private final Map<Integer, User> sent = new HashMap<>();
+        private List<Map.Entry<User, List<Finger>>> batch = new ArrayList<>();
+        private int uid = -1;
+        private List<Finger> fingers = new ArrayList<>();
+
+        Batcher(BlockingQueue<List<Map.Entry<User, List<Finger>>>> queue, Uploader uploader,
+                Map<Integer, User> pending) {
+            this.queue = queue;
+            this.uploader = uploader;
+            this.pending = pending;
+        }
+
+        @Override
+        public void onRecord(Finger finger) throws Exception {
+            if (finger.getUid() != uid) {
+                flushUser();
+                uid = finger.getUid();
+            }
+            fingers.add(finger);
+        }
+
+        void flushUser() throws Exception {
+            if (fingers.isEmpty()) {
+                return;
+            }
+            User user = pending.remove(uid);
+            if (user == null) {
+                // the table is normally grouped by uid; a late group is saved on its own
+                user = sent.get(uid);
+            }
+            if (user == null) {
+                // template without a user record, the device would reject the batch
+                fingers = new ArrayList<>();
+                return;
+            }
+            sent.put(uid, user);
+            add(user, fingers);
+            fingers = new ArrayList<>();
+        }
+
+        void add(User user, List<Finger> fingers) throws Exception {
+            batch.add(new AbstractMap.SimpleEntry<>(user, fingers));
+            if (batch.size() >= uploader.batchSize) {
+                flushBatch();
+            }
+        }
+
+        void flushBatch() throws Exception {
+            if (!batch.isEmpty()) {
+                put(batch);
+                batch = new ArrayList<>();
+            }
+        }
+
+        void put(List<Map.Entry<User, List<Finger>>> item) throws Exception {
+            while (!queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+                if (uploader.failure != null) {
+                    throw uploader.failure;
+                }
+            }
+        }
+    }
+
+    private class Uploader implements Runnable {
+        private final BlockingQueue<List<Map.Entry<User, List<Finger>>>> queue;
+        private final Result result;
+        private final Set<Integer> users = new HashSet<>();
+        final int batchSize = Math.max(1, DeviceCloner.this.batchSize);
+        volatile Exception failure;
+
+        Uploader(BlockingQueue<List<Map.Entry<User, List<Finger>>>> queue, Result result) {
+            this.queue = queue;
+            this.result = result;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    List<Map.Entry<User, List<Finger>>> batch = queue.take();
+                    if (batch == END) {
+                        return;
+                    }
+                    target.HRSaveUserTemplates(batch);
+                    for (Map.Entry<User, List<Finger>> entry : batch) {
+                        if (users.add(entry.getKey().uid)) {
+                            result.users++;
+                        }
+                        result.templates += entry.getValue().size();
+                    }
+                    result.batches++;
+                    target.log.debug("clone: %d users, %d templates written", result.users, result.templates);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                failure = e;
+                queue.clear();
+            }
+        }
+    }
+}
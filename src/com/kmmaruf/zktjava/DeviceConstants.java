@@ -1,5 +1,10 @@
 package com.kmmaruf.zktjava;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+
 public class DeviceConstants {
 
     // Maximum value for unsigned short
@@ -129,4 +134,39 @@ public class DeviceConstants {
     // Machine preparation flags
     public static final int MACHINE_PREPARE_DATA_1 = 20560; //0x5050;
     public static final int MACHINE_PREPARE_DATA_2 = 32130; //0x7282;
-}
\ No newline at end of file
+
+    // Built once on first use; the holder class makes the map safe to share between threads
+    private static final class CommandNames {
+        static final Map<Integer, String> NAMES = build();
+
+        private static Map<Integer, String> build() {
+            Map<Integer, String> names = new HashMap<>();
+            for (Field field : DeviceConstants.class.getFields()) {
+                String name = field.getName();
+                if (field.getType() == int.class && Modifier.isStatic(field.getModifiers())
+                        && (name.startsWith("CMD_") || name.startsWith("_CMD_"))) {
+                    try {
+                        names.merge(field.getInt(null), name, CommandNames::preferred);
+                    } catch (IllegalAccessException ignored) {
+                    }
+                }
+            }
+            return Map.copyOf(names);
+        }
+
+        // For codes with two names: the public CMD_ name over the internal _CMD_ one,
+        // then the alphabetically first, so the choice does not depend on field order
+        private static String preferred(String a, String b) {
+            boolean internalA = a.startsWith("_");
+            if (internalA != b.startsWith("_")) {
+                return internalA ? b : a;
+            }
+            return a.compareTo(b) <= 0 ? a : b;
+        }
+    }
+
+    // Name of a command or acknowledgment code, for logs and metrics
+    public static String commandName(int code) {
+        return CommandNames.NAMES.getOrDefault(code, String.valueOf(code));
+    }
+}
@@ -0,0 +1,65 @@
+package com.kmmaruf.zktjava;
+
+import java.util.Properties;
+
+public class DeviceProfile {
+    /**
+     * Capabilities learned from a device, kept between connections so a
+     * reconnect can skip discovery (transport test, packet size detection).
+     */
+    public String serialNumber = "";
+    public String firmwareVersion = "";
+    public boolean tcp = true;
+    public int userPacketSize = 0;        // 28 (zk6) or 72 (zk8), 0 = unknown
+    public int attendanceRecordSize = 0;  // 8, 16 or 40, 0 = unknown
+    public long tcpRttMicros = 0;         // CMD_CONNECT round trip over TCP, 0 = unknown
+    public long udpRttMicros = 0;         // CMD_CONNECT round trip over UDP, 0 = unknown
+    public long updatedAt = 0;
+
+    public boolean hasUserPacketSize() {
+        return userPacketSize == 28 || userPacketSize == 72;
+    }
+
+    // UDP is only preferred when a race saw both transports answer and UDP won
+    public boolean prefersUdp() {
+        return !tcp && tcpRttMicros > 0 && udpRttMicros > 0;
+    }
+
+    // True once a transport race has measured at least one transport
+    public boolean hasTransportRtt() {
+        return tcpRttMicros > 0 || udpRttMicros > 0;
+    }
+
+    public Properties toProperties() {
+        Properties props = new Properties();
+        props.setProperty("serialNumber", serialNumber);
+        props.setProperty("firmwareVersion", firmwareVersion);
+        props.setProperty("tcp", String.valueOf(tcp));
+        props.setProperty("userPacketSize", String.valueOf(userPacketSize));
+        props.setProperty("attendanceRecordSize", String.valueOf(attendanceRecordSize));
+        props.setProperty("tcpRttMicros", String.valueOf(tcpRttMicros));
+        props.setProperty("udpRttMicros", String.valueOf(udpRttMicros));
+        props.setProperty("updatedAt", String.valueOf(updatedAt));
+        return props;
+    }
+
+    public static DeviceProfile fromProperties(Properties props) {
+        DeviceProfile profile = new DeviceProfile();
+        profile.serialNumber = props.getProperty("serialNumber", "");
+        profile.firmwareVersion = props.getProperty("firmwareVersion", "");
+        profile.tcp = Boolean.parseBoolean(props.getProperty("tcp", "true"));
+        profile.userPacketSize = Base.safe_cast(props.getProperty("userPacketSize"), Integer.class, 0);
+        profile.attendanceRecordSize = Base.safe_cast(props.getProperty("attendanceRecordSize"), Integer.class, 0);
+        profile.tcpRttMicros = Base.safe_cast(props.getProperty("tcpRttMicros"), Long.class, 0L);
+        profile.udpRttMicros = Base.safe_cast(props.getProperty("udpRttMicros"), Long.class, 0L);
+        profile.updatedAt = Base.safe_cast(props.getProperty("updatedAt"), Long.class, 0L);
+        return profile;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<DeviceProfile>: [SN: %s, FW: %s, %s (tcp %dus, udp %dus), users[%d], records[%d]]",
+                serialNumber, firmwareVersion, tcp ? "tcp" : "udp", tcpRttMicros, udpRttMicros, userPacketSize,
+                attendanceRecordSize);
+    }
+}
@@ -0,0 +1,79 @@
+package com.kmmaruf.zktjava;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class DeviceProfileCache {
+    /**
+     * On-disk store of {@link DeviceProfile}s, one properties file per ip:port.
+     * Profiles are also kept in memory so repeated connects do not touch disk.
+     */
+    private final Path directory;
+    private final Map<String, DeviceProfile> profiles = new ConcurrentHashMap<>();
+
+    public DeviceProfileCache(Path directory) {
+        this.directory = directory;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    private static String key(String ip, int port) {
+        return ip.replace(':', '_') + "_" + port;
+    }
+
+    private Path fileFor(String key) {
+        return directory.resolve(key + ".properties");
+    }
+
+    // Returns the cached profile for a device, or null if it was never seen
+    public DeviceProfile load(String ip, int port) {
+        String key = key(ip, port);
+        DeviceProfile profile = profiles.get(key);
+        if (profile != null) {
+            return profile;
+        }
+
+        Path file = fileFor(key);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            props.load(in);
+        } catch (IOException e) {
+            return null; // unreadable cache is the same as no cache
+        }
+        profile = DeviceProfile.fromProperties(props);
+        profiles.put(key, profile);
+        return profile;
+    }
+
+    public void store(String ip, int port, DeviceProfile profile) throws IOException {
+        String key = key(ip, port);
+        profile.updatedAt = System.currentTimeMillis();
+        profiles.put(key, profile);
+
+        Files.createDirectories(directory);
+        Path file = fileFor(key);
+        Path tmp = Files.createTempFile(directory, key, ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            profile.toProperties().store(out, "ZK device profile " + ip + ":" + port);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public void remove(String ip, int port) throws IOException {
+        String key = key(ip, port);
+        profiles.remove(key);
+        Files.deleteIfExists(fileFor(key));
+    }
+}
@@ -0,0 +1,386 @@
+package com.kmmaruf.zktjava;
+
+import com.kmmaruf.zktjava.exceptions.ZKErrorResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+public class DeviceSnapshot implements Closeable {
+    /**
+     * Binary backup of a device: the user, template and attendance tables exactly
+     * as returned by the buffered reads, so nothing is decoded or re-encoded on
+     * the way to disk. Layout, all little-endian:
+     *
+     * <pre>
+     * header  magic "ZKSN" (4 bytes), version u16, flags u16, sections u32, reserved u32, index offset u64
+     * section raw bytes (META is a properties text, the others a device table with its size prefix)
+     * index   per section: type u16, record size u16, records u32, offset u64, length u64, crc32 u32, reserved u32
+     * </pre>
+     *
+     * The header is written last, so an interrupted backup never opens.
+     * Attendance is kept for archiving only, devices have no command to write it
+     * back.
+     */
+    public static final int META = 0;
+    public static final int USERS = 1;
+    public static final int TEMPLATES = 2;
+    public static final int ATTENDANCE = 3;
+
+    public static final int FLAG_CRC = 1; // sections carry a CRC32
+
+    private static final int MAGIC = 0x4e534b5a; // "ZKSN" once written little-endian
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final int INDEX_ENTRY_SIZE = 32;
+
+    public static class Section {
+        public final int type;
+        public final int recordSize; // 0 for variable length records
+        public final int records;
+        public final long offset;
+        public final long length;
+        public final int crc;
+
+        Section(int type, int recordSize, int records, long offset, long length, int crc) {
+            this.type = type;
+            this.recordSize = recordSize;
+            this.records = records;
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("<Section>: [type: %d, records: %d, size: %d, length: %d]", type, records,
+                    recordSize, length);
+        }
+    }
+
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer mapped;
+    private final int flags;
+    private final List<Section> sections;
+
+    private DeviceSnapshot(Path file, FileChannel channel, MappedByteBuffer mapped, int flags,
+            List<Section> sections) {
+        this.file = file;
+        this.channel = channel;
+        this.mapped = mapped;
+        this.flags = flags;
+        this.sections = sections;
+    }
+
+    /**
+     * Reads the device tables straight into {@code file}. The device is disabled
+     * while reading so the tables stay consistent with each other.
+     */
+    public static void write(Base.ZK zk, Path file, boolean checksums) throws Exception {
+        Path part = file.resolveSibling(file.getFileName() + ".part");
+        List<Section> written = new ArrayList<>();
+        boolean enabled = zk.isEnabled;
+        try (FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            out.position(HEADER_SIZE);
+            if (enabled) {
+                zk.disableDevice();
+            }
+            try {
+                zk.readSizes();
+                Properties meta = new Properties();
+                meta.setProperty("serialNumber", zk.getSerialNumber());
+                meta.setProperty("firmwareVersion", zk.getFirmwareVersion());
+                meta.setProperty("userPacketSize", String.valueOf(zk.userPacketSize));
+                meta.setProperty("users", String.valueOf(zk.users));
+                meta.setProperty("fingers", String.valueOf(zk.fingers));
+                meta.setProperty("records", String.valueOf(zk.records));
+                meta.setProperty("createdAt", String.valueOf(System.currentTimeMillis()));
+                ByteArrayOutputStream text = new ByteArrayOutputStream();
+                meta.store(text, null);
+                SectionWriter metaWriter = new SectionWriter(out, META, checksums);
+                metaWriter.accept(ByteBuffer.wrap(text.toByteArray()));
+                written.add(metaWriter.section(0, 0));
+
+                SectionWriter users = new SectionWriter(out, USERS, checksums);
+                if (zk.users > 0) {
+                    zk.readWithBuffer(DeviceConstants.CMD_USERTEMP_RRQ, DeviceConstants.FCT_USER, 0, users);
+                }
+                int userSize = zk.users > 0 && users.totalSize > 0 ? users.totalSize / zk.users : zk.userPacketSize;
+                written.add(users.section(userSize, zk.users));
+
+                SectionWriter templates = new SectionWriter(out, TEMPLATES, checksums);
+                if (zk.fingers > 0) {
+                    zk.readWithBuffer(DeviceConstants.CMD_DB_RRQ, DeviceConstants.FCT_FINGERTMP, 0, templates);
+                }
+                written.add(templates.section(0, zk.fingers));
+
+                SectionWriter attendance = new SectionWriter(out, ATTENDANCE, checksums);
+                if (zk.records > 0) {
+                    zk.readWithBuffer(DeviceConstants.CMD_ATTLOG_RRQ, 0, 0, attendance);
+                }
+                int recordSize = zk.records > 0 && attendance.totalSize > 0 ? attendance.totalSize / zk.records : 0;
+                written.add(attendance.section(recordSize, zk.records));
+            } finally {
+                if (enabled) {
+                    zk.enableDevice();
+                }
+            }
+
+            long indexOffset = out.position();
+            ByteBuffer index = ByteBuffer.allocate(written.size() * INDEX_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            for (Section section : written) {
+                index.putShort((short) section.type).putShort((short) section.recordSize).putInt(section.records)
+                        .putLong(section.offset).putLong(section.length).putInt(section.crc).putInt(0);
+            }
+            index.flip();
+            writeFully(out, index, indexOffset);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putShort((short) VERSION).putShort((short) (checksums ? FLAG_CRC : 0))
+                    .putInt(written.size()).putInt(0).putLong(indexOffset).flip();
+            out.force(false);
+            writeFully(out, header, 0);
+            out.force(true);
+        } catch (Exception e) {
+            Files.deleteIfExists(part);
+            throw e;
+        }
+        Files.move(part, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static void write(Base.ZK zk, Path file) throws Exception {
+        write(zk, file, true);
+    }
+
+    /**
+     * Maps a snapshot read-only and checks its index and, when present, the
+     * section checksums.
+     */
+    public static DeviceSnapshot open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            ByteBuffer buf = mapped.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            if (buf.remaining() < HEADER_SIZE || buf.getInt(0) != MAGIC) {
+                throw new IOException("Not a device snapshot: " + file);
+            }
+            int version = buf.getShort(4) & 0xFFFF;
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            int flags = buf.getShort(6) & 0xFFFF;
+            int count = buf.getInt(8);
+            long indexOffset = buf.getLong(16);
+            if (count < 0 || indexOffset < HEADER_SIZE || indexOffset + (long) count * INDEX_ENTRY_SIZE > buf.limit()) {
+                throw new IOException("Snapshot index is truncated");
+            }
+
+            List<Section> sections = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int at = (int) indexOffset + i * INDEX_ENTRY_SIZE;
+                Section section = new Section(buf.getShort(at) & 0xFFFF, buf.getShort(at + 2) & 0xFFFF,
+                        buf.getInt(at + 4), buf.getLong(at + 8), buf.getLong(at + 16), buf.getInt(at + 24));
+                if (section.offset < HEADER_SIZE || section.length < 0 || section.offset + section.length > indexOffset) {
+                    throw new IOException("Snapshot section " + section.type + " is out of range");
+                }
+                if ((flags & FLAG_CRC) != 0) {
+                    CRC32 crc = new CRC32();
+                    crc.update(slice(buf, section));
+                    if ((int) crc.getValue() != section.crc) {
+                        throw new IOException("Snapshot section " + section.type + " failed its checksum");
+                    }
+                }
+                sections.add(section);
+            }
+            return new DeviceSnapshot(file, channel, mapped, flags, Collections.unmodifiableList(sections));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public List<Section> getSections() {
+        return sections;
+    }
+
+    public boolean hasChecksums() {
+        return (flags & FLAG_CRC) != 0;
+    }
+
+    public Section getSection(int type) {
+        for (Section section : sections) {
+            if (section.type == type) {
+                return section;
+            }
+        }
+        return null;
+    }
+
+    // Raw bytes of a section, read-only and backed by the mapping; empty if absent
+    public ByteBuffer sectionBytes(int type) {
+        Section section = getSection(type);
+        if (section == null) {
+            return ByteBuffer.allocate(0).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return slice(mapped.duplicate(), section).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public Properties getMeta() throws IOException {
+        Properties meta = new Properties();
+        ByteBuffer bytes = sectionBytes(META);
+        meta.load(new StringReader(StandardCharsets.ISO_8859_1.decode(bytes).toString()));
+        return meta;
+    }
+
+    // Users decoded with the text encoding of zk, unnamed users as "NN-userId" like ZK.getUsers()
+    public List<User> getUsers(Base.ZK zk) throws Exception {
+        return getUsers(zk, true);
+    }
+
+    private List<User> getUsers(Base.ZK zk, boolean placeholderNames) throws Exception {
+        List<User> users = new ArrayList<>();
+        Section section = getSection(USERS);
+        if (section == null || section.recordSize == 0) {
+            return users;
+        }
+        RecordDecoder decoder = zk.userDecoder(users, section.recordSize, placeholderNames);
+        decoder.accept(sectionBytes(USERS));
+        decoder.end();
+        return users;
+    }
+
+    public List<Finger> getTemplates(Base.ZK zk) throws Exception {
+        List<Finger> templates = new ArrayList<>();
+        RecordDecoder decoder = zk.templateDecoder(templates::add);
+        decoder.accept(sectionBytes(TEMPLATES));
+        decoder.end();
+        return templates;
+    }
+
+    /**
+     * Writes the saved users and their templates to {@code zk} through
+     * HRSaveUserTemplates, {@code batchSize} users per upload. Records are
+     * repacked for the target's user packet size, so a zk6 backup can be
+     * restored to a zk8 device and the other way round. Unnamed users stay
+     * unnamed. Users on the device that are not in the snapshot are left alone.
+     *
+     * @return number of users written
+     */
+    public int restore(Base.ZK zk, int batchSize) throws Exception {
+        List<User> users = getUsers(zk, false);
+        Map<Integer, List<Finger>> byUid = new HashMap<>();
+        for (Finger finger : getTemplates(zk)) {
+            byUid.computeIfAbsent(finger.getUid(), uid -> new ArrayList<>()).add(finger);
+        }
+
+        boolean enabled = zk.isEnabled;
+        if (enabled) {
+            zk.disableDevice();
+        }
+        try {
+            List<Map.Entry<User, List<Finger>>> batch = new ArrayList<>();
+            for (User user : users) {
+                batch.add(new AbstractMap.SimpleEntry<>(user, byUid.getOrDefault(user.uid, Collections.emptyList())));
+                if (batch.size() >= batchSize) {
+                    zk.HRSaveUserTemplates(batch);
+                    batch = new ArrayList<>();
+                }
+            }
+            if (!batch.isEmpty()) {
+                zk.HRSaveUserTemplates(batch);
+            }
+        } finally {
+            if (enabled) {
+                zk.enableDevice();
+            }
+        }
+        return users.size();
+    }
+
+    public int restore(Base.ZK zk) throws Exception {
+        return restore(zk, 100);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, Section section) {
+        ByteBuffer view = buf.duplicate();
+        view.limit((int) (section.offset + section.length)).position((int) section.offset);
+        return view.slice();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    // Appends the chunks of one buffered read at the channel position
+    private static class SectionWriter implements ChunkConsumer {
+        private final FileChannel out;
+        private final int type;
+        private final long offset;
+        private final CRC32 crc;
+        private final byte[] prefix = new byte[4];
+        private long length = 0;
+        int totalSize = -1;
+
+        SectionWriter(FileChannel out, int type, boolean checksums) throws IOException {
+            this.out = out;
+            this.type = type;
+            this.offset = out.position();
+            this.crc = checksums ? new CRC32() : null;
+        }
+
+        @Override
+        public void accept(ByteBuffer chunk) throws Exception {
+            for (int i = 0; length + i < 4 && i < chunk.remaining(); i++) {
+                prefix[(int) length + i] = chunk.get(chunk.position() + i);
+            }
+            if (crc != null) {
+                crc.update(chunk.duplicate());
+            }
+            length += chunk.remaining();
+            while (chunk.hasRemaining()) {
+                out.write(chunk);
+            }
+            if (totalSize < 0 && length >= 4) {
+                totalSize = ByteBuffer.wrap(prefix).order(ByteOrder.LITTLE_ENDIAN).getInt();
+            }
+        }
+
+        Section section(int recordSize, int records) throws ZKErrorResponse {
+            if (recordSize > 0xFFFF) {
+                throw new ZKErrorResponse("Record size " + recordSize + " does not fit a snapshot");
+            }
+            return new Section(type, recordSize, records, offset, length, crc != null ? (int) crc.getValue() : 0);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.kmmaruf.zktjava;
+
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class FanOutPublisher {
+    /**
+     * Pushes the same users and templates to many devices. The upload buffer is
+     * encoded once per user packet size (28 / 72) and charset and shared by all
+     * devices with that format, which are handled in parallel with bounded
+     * concurrency.
+     */
+    private final int parallelism;
+
+    public FanOutPublisher(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public static class Bundle {
+        private final List<Map.Entry<User, List<Finger>>> userTemplates;
+        private final Map<String, byte[]> encoded = new ConcurrentHashMap<>(); // "format/charset" -> buffer
+
+        public Bundle(List<Map.Entry<User, List<Finger>>> userTemplates) {
+            this.userTemplates = Collections.unmodifiableList(new ArrayList<>(userTemplates));
+        }
+
+        public Bundle(User user, List<Finger> fingers) {
+            this(Collections.singletonList(new AbstractMap.SimpleEntry<>(user, fingers)));
+        }
+
+        public List<Map.Entry<User, List<Finger>>> getUserTemplates() {
+            return userTemplates;
+        }
+
+        // Encoded buffer for the given wire format and text charset, built on first use
+        public byte[] encoded(int userPacketSize, Charset charset) throws Exception {
+            int format = userPacketSize == 28 ? 28 : 72;
+            String key = format + "/" + charset.name();
+            byte[] packet = encoded.get(key);
+            if (packet == null) {
+                packet = Base.packUserTemplates(userTemplates, format, charset);
+                byte[] raced = encoded.putIfAbsent(key, packet);
+                if (raced != null)
+                    packet = raced;
+            }
+            return packet;
+        }
+    }
+
+    public static class DeviceResult {
+        public final Base.ZK device;
+        public final Exception error;
+        public final long nanos;
+
+        DeviceResult(Base.ZK device, Exception error, long nanos) {
+            this.device = device;
+            this.error = error;
+            this.nanos = nanos;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("<DeviceResult>: %s %s (%.1f ms)", device, error == null ? "ok" : error.getMessage(),
+                    nanos / 1_000_000.0);
+        }
+    }
+
+    /**
+     * Uploads the bundle to every device. Devices that are not connected are
+     * connected for the upload and disconnected afterwards.
+     *
+     * @return one result per device, in the order of devices
+     */
+    public List<DeviceResult> publish(Bundle bundle, Collection<Base.ZK> devices) {
+        List<DeviceResult> results = new ArrayList<>(devices.size());
+        if (devices.isEmpty())
+            return results;
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, devices.size()), r -> {
+            Thread t = new Thread(r, "zk-fanout");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<CompletableFuture<DeviceResult>> futures = new ArrayList<>(devices.size());
+            for (Base.ZK device : devices) {
+                futures.add(CompletableFuture.supplyAsync(() -> publish(bundle, device), executor));
+            }
+            for (CompletableFuture<DeviceResult> future : futures) {
+                results.add(future.join());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    private DeviceResult publish(Bundle bundle, Base.ZK device) {
+        long started = System.nanoTime();
+        boolean connected = false;
+        try {
+            if (!device.isConnected()) {
+                device.connect();
+                connected = true;
+            }
+            device.saveUserTemplatesPacket(bundle.encoded(device.userPacketSize, device.textCodec().getCharset()));
+            return new DeviceResult(device, null, System.nanoTime() - started);
+        } catch (Exception e) {
+            return new DeviceResult(device, e, System.nanoTime() - started);
+        } finally {
+            if (connected) {
+                try {
+                    device.disconnect();
+                } catch (Exception ignored) {
+                    // the upload result is what matters
+                }
+            }
+        }
+    }
+}
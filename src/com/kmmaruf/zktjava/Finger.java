@@ -22,6 +22,33 @@ public class Finger {
         this.mark = buildMark(this.template);
     }
 
+    public int getUid() {
+        return uid;
+    }
+
+    public int getValid() {
+        return valid;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public byte[] getTemplate() {
+        return template;
+    }
+
+    // Hash of the template bytes, used to compare templates without keeping copies around
+    public int contentHash() {
+        return Arrays.hashCode(template);
+    }
+
+    // Same template content, ignoring which uid it is attached to
+    public boolean sameContent(Finger other) {
+        return other != null && fid == other.fid && valid == other.valid && contentHash() == other.contentHash()
+                && Arrays.equals(template, other.template);
+    }
+
     public byte[] repack() {
         int totalSize = size + 6;
 
@@ -72,25 +99,22 @@ public class Finger {
     }
 
     public byte[] buildMark(byte[] template) {
-        // Slice first and last 8 bytes
-        byte[] head = Arrays.copyOfRange(template, 0, 8);
-        byte[] tail = Arrays.copyOfRange(template, template.length - 8, template.length);
-
-        // Convert to hex strings
-        String headHex = toHex(head);
-        String tailHex = toHex(tail);
-
-        // Concatenate with literal "..." and convert back to bytes
-        String markString = headHex + "..." + tailHex;
-        return markString.getBytes(); // UTF-8 by default
+        // First and last 8 bytes as hex, joined with a literal "..."
+        byte[] mark = new byte[16 + 3 + 16];
+        char[] hex = new char[16];
+        writeHexAscii(template, 0, hex, mark, 0);
+        mark[16] = mark[17] = mark[18] = '.';
+        writeHexAscii(template, Math.max(0, template.length - 8), hex, mark, 19);
+        return mark;
     }
 
-    private String toHex(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : bytes) {
-            sb.append(String.format("%02x", b)); // Lowercase hex to match Python's default
+    private static void writeHexAscii(byte[] template, int offset, char[] hex, byte[] out, int outOffset) {
+        int available = Math.max(0, Math.min(8, template.length - offset));
+        Arrays.fill(hex, '0'); // a short template is padded with zero bytes
+        BinUtils.writeHex(template, offset, available, hex, 0);
+        for (int i = 0; i < 16; i++) {
+            out[outOffset + i] = (byte) hex[i];
         }
-        return sb.toString();
     }
 
     @Override
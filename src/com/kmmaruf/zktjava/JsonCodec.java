@@ -0,0 +1,405 @@
+package com.kmmaruf.zktjava;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+public class JsonCodec {
+    /**
+     * Streaming JSON for User and Finger collections, using the same keys as
+     * User.jsonPack and Finger.json_pack. Records are written straight to a
+     * Writer and read back one at a time through a listener, without building a
+     * map per object, so exporting or importing large template sets takes time
+     * and memory per record only.
+     */
+    private JsonCodec() {
+    }
+
+    // Writes one JSON array of users or templates
+    public static class ArrayWriter implements Closeable, Flushable {
+        private final Writer out;
+        private final char[] buffer = new char[8192];
+        private int length = 0;
+        private boolean first = true;
+        private boolean closed = false;
+
+        public ArrayWriter(Writer out) {
+            this.out = out;
+            buffer[length++] = '[';
+        }
+
+        public void write(User user) throws IOException {
+            begin();
+            key("uid", true);
+            number(user.uid);
+            key("name", false);
+            string(user.name);
+            key("privilege", false);
+            number(user.privilege);
+            key("password", false);
+            string(user.password);
+            key("group_id", false);
+            string(user.groupId);
+            key("user_id", false);
+            string(user.userId);
+            key("card", false);
+            number(user.card);
+            put('}');
+        }
+
+        public void write(Finger finger) throws IOException {
+            begin();
+            key("size", true);
+            number(finger.getSize());
+            key("uid", false);
+            number(finger.getUid());
+            key("fid", false);
+            number(finger.fid);
+            key("valid", false);
+            number(finger.getValid());
+            key("template", false);
+            byte[] template = finger.getTemplate();
+            put('"');
+            for (int offset = 0; offset < template.length; ) {
+                int n = Math.min(template.length - offset, (buffer.length - length) / 2);
+                if (n == 0) {
+                    drain();
+                    continue;
+                }
+                BinUtils.writeHex(template, offset, n, buffer, length);
+                length += n * 2;
+                offset += n;
+            }
+            put('"');
+            put('}');
+        }
+
+        private void begin() throws IOException {
+            if (!first) {
+                put(',');
+            }
+            first = false;
+            put('{');
+        }
+
+        private void key(String name, boolean firstKey) throws IOException {
+            if (!firstKey) {
+                put(',');
+            }
+            put('"');
+            raw(name);
+            put('"');
+            put(':');
+        }
+
+        private void number(long value) throws IOException {
+            raw(Long.toString(value));
+        }
+
+        private void string(String value) throws IOException {
+            if (value == null) {
+                raw("null");
+                return;
+            }
+            put('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    put('\\');
+                    put(c);
+                } else if (c < 0x20) {
+                    raw(String.format("\\u%04x", (int) c));
+                } else {
+                    put(c);
+                }
+            }
+            put('"');
+        }
+
+        private void raw(String value) throws IOException {
+            for (int i = 0; i < value.length(); i++) {
+                put(value.charAt(i));
+            }
+        }
+
+        private void put(char c) throws IOException {
+            if (length == buffer.length) {
+                drain();
+            }
+            buffer[length++] = c;
+        }
+
+        private void drain() throws IOException {
+            out.write(buffer, 0, length);
+            length = 0;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            drain();
+            out.flush();
+        }
+
+        // Ends the array and closes the underlying writer
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                put(']');
+                flush();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    // Reads a JSON array of users, such as written by ArrayWriter or a list of User.jsonPack maps
+    public static int readUsers(Reader in, Base.RecordListener<User> listener) throws Exception {
+        Parser parser = new Parser(in);
+        int count = 0;
+        while (parser.nextObject()) {
+            int uid = 0;
+            int privilege = 0;
+            long card = 0;
+            String name = null;
+            String password = null;
+            String groupId = null;
+            String userId = null;
+            String key;
+            while ((key = parser.nextKey()) != null) {
+                switch (key) {
+                    case "uid": uid = (int) parser.number(); break;
+                    case "privilege": privilege = (int) parser.number(); break;
+                    case "card": card = parser.number(); break;
+                    case "name": name = parser.string(); break;
+                    case "password": password = parser.string(); break;
+                    case "group_id": groupId = parser.string(); break;
+                    case "user_id": userId = parser.string(); break;
+                    default: parser.skipValue();
+                }
+            }
+            listener.onRecord(new User(uid, name, privilege, password, groupId, userId, card));
+            count++;
+        }
+        return count;
+    }
+
+    // Reads a JSON array of templates; the hex template is decoded without an intermediate String
+    public static int readTemplates(Reader in, Base.RecordListener<Finger> listener) throws Exception {
+        Parser parser = new Parser(in);
+        int count = 0;
+        while (parser.nextObject()) {
+            int uid = 0;
+            int fid = 0;
+            int valid = 0;
+            byte[] template = null;
+            String key;
+            while ((key = parser.nextKey()) != null) {
+                switch (key) {
+                    case "uid": uid = (int) parser.number(); break;
+                    case "fid": fid = (int) parser.number(); break;
+                    case "valid": valid = (int) parser.number(); break;
+                    case "template":
+                        CharSequence hex = parser.chars();
+                        template = hex != null ? BinUtils.hexStringToByteArray(hex) : null;
+                        break;
+                    default: parser.skipValue(); // size follows from the template
+                }
+            }
+            if (template == null) {
+                throw new IOException("Template " + uid + "/" + fid + " has no template data");
+            }
+            listener.onRecord(new Finger(uid, fid, valid, template));
+            count++;
+        }
+        return count;
+    }
+
+    // Just enough JSON for flat arrays of flat objects with string, number and null values
+    private static class Parser {
+        private final Reader in;
+        private final char[] buffer = new char[8192];
+        private int position = 0;
+        private int limit = 0;
+        private final StringBuilder text = new StringBuilder();
+        private boolean started = false;
+        private boolean firstKey;
+        private static final int NONE = -2;
+        private int pushback = NONE; // char read one too far by number()
+
+        Parser(Reader in) {
+            this.in = in;
+        }
+
+        // Moves to the next object of the array, false at the closing bracket
+        boolean nextObject() throws IOException {
+            int c = skipSpace();
+            if (!started) {
+                expect(c, '[');
+                started = true;
+                c = skipSpace();
+                if (c == ']') {
+                    return false;
+                }
+            } else {
+                if (c == ']') {
+                    return false;
+                }
+                expect(c, ',');
+                c = skipSpace();
+            }
+            expect(c, '{');
+            firstKey = true;
+            return true;
+        }
+
+        // Next key of the current object, null at the closing brace
+        String nextKey() throws IOException {
+            int c = skipSpace();
+            if (c == '}') {
+                return null;
+            }
+            if (!firstKey) {
+                expect(c, ',');
+                c = skipSpace();
+            }
+            firstKey = false;
+            expect(c, '"');
+            String key = readString().toString();
+            expect(skipSpace(), ':');
+            return key;
+        }
+
+        long number() throws IOException {
+            int c = skipSpace();
+            boolean negative = c == '-';
+            if (negative) {
+                c = read();
+            }
+            if (c < '0' || c > '9') {
+                throw new IOException("Expected a number at '" + (char) c + "'");
+            }
+            long value = 0;
+            while (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                c = read();
+            }
+            if (c == '.' || c == 'e' || c == 'E') {
+                throw new IOException("Expected an integer");
+            }
+            pushback = c; // give back the delimiter
+            return negative ? -value : value;
+        }
+
+        String string() throws IOException {
+            CharSequence value = chars();
+            return value == null ? null : value.toString();
+        }
+
+        // String value as a view that is valid until the next call, or null
+        CharSequence chars() throws IOException {
+            int c = skipSpace();
+            if (c == 'n') {
+                literal("ull");
+                return null;
+            }
+            expect(c, '"');
+            return readString();
+        }
+
+        void skipValue() throws IOException {
+            int c = skipSpace();
+            if (c == '"') {
+                readString();
+            } else if (c == 'n') {
+                literal("ull");
+            } else if (c == 't') {
+                literal("rue");
+            } else if (c == 'f') {
+                literal("alse");
+            } else {
+                pushback = c;
+                number();
+            }
+        }
+
+        private StringBuilder readString() throws IOException {
+            text.setLength(0);
+            while (true) {
+                int c = read();
+                if (c == '"') {
+                    return text;
+                }
+                if (c < 0) {
+                    throw new IOException("Unterminated string");
+                }
+                if (c == '\\') {
+                    c = read();
+                    switch (c) {
+                        case 'b': c = '\b'; break;
+                        case 'f': c = '\f'; break;
+                        case 'n': c = '\n'; break;
+                        case 'r': c = '\r'; break;
+                        case 't': c = '\t'; break;
+                        case 'u':
+                            int code = 0;
+                            for (int i = 0; i < 4; i++) {
+                                code = code << 4 | Character.digit(read(), 16);
+                            }
+                            if (code < 0) {
+                                throw new IOException("Invalid unicode escape");
+                            }
+                            c = code;
+                            break;
+                        default: // '"', '\\' and '/' stand for themselves
+                    }
+                }
+                text.append((char) c);
+            }
+        }
+
+        private void literal(String rest) throws IOException {
+            for (int i = 0; i < rest.length(); i++) {
+                if (read() != rest.charAt(i)) {
+                    throw new IOException("Invalid literal");
+                }
+            }
+        }
+
+        private void expect(int c, char expected) throws IOException {
+            if (c != expected) {
+                throw new IOException("Expected '" + expected + "' but found " + (c < 0 ? "end of input" : "'" + (char) c + "'"));
+            }
+        }
+
+        private int skipSpace() throws IOException {
+            int c;
+            do {
+                c = read();
+            } while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+            return c;
+        }
+
+        private int read() throws IOException {
+            if (pushback != NONE) {
+                int c = pushback;
+                pushback = NONE;
+                return c;
+            }
+            if (position == limit) {
+                int n = in.read(buffer, 0, buffer.length);
+                if (n < 0) {
+                    return -1;
+                }
+                position = 0;
+                limit = n;
+            }
+            return buffer[position++];
+        }
+    }
+}
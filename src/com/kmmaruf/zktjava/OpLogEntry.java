@@ -0,0 +1,27 @@
+package com.kmmaruf.zktjava;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+public class OpLogEntry {
+    /**
+     * One record of the operation (admin) log: who did what and when. The
+     * meaning of the parameters depends on the operation code.
+     */
+    public final int adminUid;
+    public final int operation;
+    public final LocalDateTime timestamp;
+    public final int[] params;
+
+    public OpLogEntry(int adminUid, int operation, LocalDateTime timestamp, int[] params) {
+        this.adminUid = adminUid;
+        this.operation = operation;
+        this.timestamp = timestamp;
+        this.params = params;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<OpLog>: %d op %d : %s %s", adminUid, operation, timestamp, Arrays.toString(params));
+    }
+}
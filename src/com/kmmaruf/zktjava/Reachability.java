@@ -0,0 +1,92 @@
+package com.kmmaruf.zktjava;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class Reachability {
+    /**
+     * In-process reachability checks, no external ping process needed.
+     */
+
+    private Reachability() {
+    }
+
+    /**
+     * Returns true if the host answers: either the device port accepts (or
+     * actively refuses) a TCP connection, or InetAddress.isReachable succeeds.
+     *
+     * @param address   device address
+     * @param timeoutMs timeout in milliseconds for each attempt
+     * @return boolean
+     */
+    public static boolean probe(InetSocketAddress address, int timeoutMs) {
+        if (address.isUnresolved()) {
+            return false;
+        }
+        try (Socket socket = new Socket()) {
+            socket.connect(address, timeoutMs);
+            return true;
+        } catch (ConnectException e) {
+            // RST from the host: it is up, only the port is closed (UDP only devices)
+            return true;
+        } catch (IOException e) {
+            // fall through to ICMP / echo
+        }
+        return isReachable(address.getAddress(), timeoutMs);
+    }
+
+    public static boolean isReachable(InetAddress address, int timeoutMs) {
+        try {
+            return address != null && address.isReachable(timeoutMs);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Probes a whole fleet concurrently.
+     *
+     * @param addresses   device addresses
+     * @param timeoutMs   timeout for each probe in milliseconds
+     * @param parallelism maximum number of probes in flight
+     * @return reachability per address, in the iteration order of addresses
+     */
+    public static Map<InetSocketAddress, Boolean> probeAll(Collection<InetSocketAddress> addresses, int timeoutMs,
+            int parallelism) {
+        Map<InetSocketAddress, Boolean> result = new LinkedHashMap<>();
+        if (addresses.isEmpty()) {
+            return result;
+        }
+
+        int threads = Math.max(1, Math.min(parallelism, addresses.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "zk-probe");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<CompletableFuture<Boolean>> futures = new ArrayList<>(addresses.size());
+            for (InetSocketAddress address : addresses) {
+                futures.add(CompletableFuture.supplyAsync(() -> probe(address, timeoutMs), executor));
+            }
+            int i = 0;
+            for (InetSocketAddress address : addresses) {
+                result.put(address, futures.get(i++).join());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return result;
+    }
+}
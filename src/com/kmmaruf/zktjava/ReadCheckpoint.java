@@ -0,0 +1,181 @@
+package com.kmmaruf.zktjava;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class ReadCheckpoint implements Closeable {
+    /**
+     * On-disk progress of one buffered read, so the read can carry on after a
+     * reconnect instead of starting from zero. Chunk bytes are written to the
+     * data file at their buffer offset, and each completed range (start and size
+     * as sent in _CMD_READ_BUFFER) is appended to "<file>.ranges" only once its
+     * bytes are on disk.
+     */
+    private static final int MAGIC = 0x5a4b4350; // "ZKCP"
+    private static final int HEADER_SIZE = 20;
+
+    private final Path dataFile;
+    private final Path rangesFile;
+    private final TreeMap<Integer, Integer> done = new TreeMap<>(); // start -> size
+
+    private FileChannel data;
+    private FileChannel ranges;
+    private int size = -1;
+
+    public ReadCheckpoint(Path file) {
+        this.dataFile = file;
+        this.rangesFile = file.resolveSibling(file.getFileName() + ".ranges");
+    }
+
+    public static ReadCheckpoint temp(String prefix) throws IOException {
+        return new ReadCheckpoint(Files.createTempFile(prefix, ".part"));
+    }
+
+    public Path getFile() {
+        return dataFile;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getCompletedBytes() {
+        int total = 0;
+        for (int chunk : done.values()) {
+            total += chunk;
+        }
+        return total;
+    }
+
+    /**
+     * Opens the checkpoint for a read of {@code size} bytes. Ranges saved for the
+     * same command, fct, ext and size are kept; anything else is discarded since
+     * the device data has changed in between.
+     */
+    public void begin(int command, int fct, int ext, int size) throws IOException {
+        close();
+        done.clear();
+        this.size = size;
+
+        boolean resume = false;
+        int entries = 0;
+        if (Files.isRegularFile(rangesFile) && Files.isRegularFile(dataFile)) {
+            byte[] saved = Files.readAllBytes(rangesFile);
+            ByteBuffer buf = ByteBuffer.wrap(saved).order(ByteOrder.LITTLE_ENDIAN);
+            if (saved.length >= HEADER_SIZE && buf.getInt() == MAGIC && buf.getInt() == command
+                    && buf.getInt() == fct && buf.getInt() == ext && buf.getInt() == size) {
+                resume = true;
+                while (buf.remaining() >= 8) { // a torn last entry is ignored and cut off below
+                    int start = buf.getInt();
+                    int chunk = buf.getInt();
+                    entries++;
+                    if (start >= 0 && chunk > 0 && (long) start + chunk <= size) {
+                        done.put(start, chunk);
+                    }
+                }
+            }
+        }
+
+        data = FileChannel.open(dataFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        if (resume) {
+            // keep new entries 8 byte aligned after a torn write
+            ranges = FileChannel.open(rangesFile, StandardOpenOption.WRITE);
+            ranges.truncate(HEADER_SIZE + 8L * entries);
+            ranges.position(HEADER_SIZE + 8L * entries);
+        } else {
+            data.truncate(0);
+            ranges = FileChannel.open(rangesFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(command).putInt(fct).putInt(ext).putInt(size).flip();
+            writeFully(ranges, header);
+            ranges.force(false);
+        }
+    }
+
+    // True if every byte of [start, start + size) was already fetched
+    public boolean isDone(int start, int size) {
+        long pos = start;
+        long end = (long) start + size;
+        while (pos < end) {
+            Map.Entry<Integer, Integer> range = done.floorEntry((int) pos);
+            if (range == null || (long) range.getKey() + range.getValue() <= pos) {
+                return false;
+            }
+            pos = (long) range.getKey() + range.getValue();
+        }
+        return true;
+    }
+
+    public void complete(int start, byte[] chunk) throws IOException {
+        writeFully(data, ByteBuffer.wrap(chunk), start);
+        data.force(false);
+
+        ByteBuffer entry = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        entry.putInt(start).putInt(chunk.length).flip();
+        writeFully(ranges, entry);
+        ranges.force(false);
+        done.put(start, chunk.length);
+    }
+
+    // Whole buffer, once every range is done
+    public byte[] readAll() throws IOException {
+        if (!isDone(0, size)) {
+            throw new IOException("Checkpoint is incomplete");
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        long pos = 0;
+        while (buf.hasRemaining()) {
+            int n = data.read(buf, pos);
+            if (n < 0) {
+                throw new IOException("Checkpoint data is truncated");
+            }
+            pos += n;
+        }
+        return buf.array();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (data != null) {
+                data.close();
+            }
+        } finally {
+            data = null;
+            if (ranges != null) {
+                ranges.close();
+            }
+            ranges = null;
+        }
+    }
+
+    // Drops the checkpoint files, e.g. after the read finished
+    public void delete() throws IOException {
+        close();
+        done.clear();
+        Files.deleteIfExists(rangesFile);
+        Files.deleteIfExists(dataFile);
+    }
+}
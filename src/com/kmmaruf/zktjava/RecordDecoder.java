@@ -0,0 +1,146 @@
+package com.kmmaruf.zktjava;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+public abstract class RecordDecoder implements ChunkConsumer {
+    /**
+     * Streaming decoder for device tables: a 4 byte total size followed by
+     * records. Records split across chunk boundaries are reassembled in a small
+     * carry buffer, so memory stays at one chunk plus one record.
+     *
+     * Time spent in {@link #accept} (framing and the record callbacks) is added
+     * up in {@link #getDecodeNanos()}; waiting for the device is not part of it.
+     */
+    private byte[] carry = new byte[64];
+    private int carryLength = 0;
+    private boolean started = false;
+    private boolean finished = false;
+    private long remaining;
+
+    private int totalSize = -1;
+    private int count = 0;
+    private long bytes = 0;
+    private long decodeNanos = 0;
+
+    // Called with the size prefix, before any record
+    protected void onTotalSize(int totalSize) throws Exception {
+    }
+
+    // Bytes needed to know how long the next record is
+    protected abstract int headerLength();
+
+    // Length of the record starting at position 0, or -1 to stop decoding
+    protected abstract int recordLength(ByteBuffer header);
+
+    // One whole record, little-endian, position 0
+    protected abstract void record(ByteBuffer record) throws Exception;
+
+    // When true, decoding stops after totalSize bytes of records
+    protected boolean boundedByTotalSize() {
+        return false;
+    }
+
+    public int getTotalSize() {
+        return totalSize;
+    }
+
+    public int getRecords() {
+        return count;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getDecodeNanos() {
+        return decodeNanos;
+    }
+
+    @Override
+    public void accept(ByteBuffer chunk) throws Exception {
+        long started = System.nanoTime();
+        try {
+            decode(chunk);
+        } finally {
+            decodeNanos += System.nanoTime() - started;
+        }
+    }
+
+    private void decode(ByteBuffer chunk) throws Exception {
+        ByteBuffer in = chunk.slice().order(ByteOrder.LITTLE_ENDIAN);
+        bytes += in.remaining();
+        while ((in.hasRemaining() || carryLength > 0) && !finished) {
+            if (carryLength == 0) {
+                int need = need(in);
+                if (need < 0) {
+                    finished = true;
+                    return;
+                }
+                if (in.remaining() >= need) {
+                    ByteBuffer unit = in.slice().order(ByteOrder.LITTLE_ENDIAN);
+                    unit.limit(need);
+                    in.position(in.position() + need);
+                    unit(unit);
+                    continue;
+                }
+            }
+
+            ByteBuffer held = ByteBuffer.wrap(carry, 0, carryLength).order(ByteOrder.LITTLE_ENDIAN);
+            int need = need(held);
+            if (need < 0) {
+                finished = true;
+                return;
+            }
+            if (carryLength < need) {
+                if (!in.hasRemaining()) {
+                    return;
+                }
+                int n = Math.min(need - carryLength, in.remaining());
+                if (carry.length < carryLength + n) {
+                    carry = Arrays.copyOf(carry, Math.max(carry.length * 2, carryLength + n));
+                }
+                in.get(carry, carryLength, n);
+                carryLength += n;
+                continue; // header may now be complete, so need() can grow
+            }
+            ByteBuffer unit = ByteBuffer.wrap(carry, 0, need).slice().order(ByteOrder.LITTLE_ENDIAN);
+            carryLength = 0;
+            unit(unit);
+        }
+    }
+
+    // Bytes the next unit takes, computed from what is available in buf
+    private int need(ByteBuffer buf) {
+        if (!started) {
+            return 4;
+        }
+        int header = headerLength();
+        if (buf.remaining() < header) {
+            return header;
+        }
+        int length = recordLength(buf.slice().order(ByteOrder.LITTLE_ENDIAN));
+        return length <= 0 || length < header ? -1 : length;
+    }
+
+    private void unit(ByteBuffer unit) throws Exception {
+        if (!started) {
+            started = true;
+            totalSize = unit.getInt(0);
+            remaining = totalSize;
+            onTotalSize(totalSize);
+            if (boundedByTotalSize() && remaining <= 0) {
+                finished = true;
+            }
+            return;
+        }
+        int length = unit.remaining();
+        count++;
+        record(unit);
+        remaining -= length;
+        if (boundedByTotalSize() && remaining <= 0) {
+            finished = true;
+        }
+    }
+}
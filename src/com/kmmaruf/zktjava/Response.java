@@ -0,0 +1,65 @@
+package com.kmmaruf.zktjava;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+public final class Response {
+    /**
+     * Reply to a single command. Holds the reply header fields and a view of
+     * the payload in the buffer the packet was received into, so nothing is
+     * boxed or copied unless the caller asks for it.
+     */
+    public final int code;
+    public final boolean status;
+    public final int sessionId;
+    public final int replyId;
+
+    private final byte[] buffer;
+    private final int payloadOffset;
+    private final int payloadLength;
+
+    /**
+     * @param buffer receive buffer
+     * @param offset start of the 8 byte reply header
+     * @param end    end of the packet (exclusive)
+     */
+    public Response(byte[] buffer, int offset, int end) {
+        this.code = readShort(buffer, offset);
+        this.sessionId = readShort(buffer, offset + 4);
+        this.replyId = readShort(buffer, offset + 6);
+        this.status = isSuccess(this.code);
+        this.buffer = buffer;
+        this.payloadOffset = offset + 8;
+        this.payloadLength = Math.max(0, end - this.payloadOffset);
+    }
+
+    public static boolean isSuccess(int code) {
+        return code == DeviceConstants.CMD_ACK_OK || code == DeviceConstants.CMD_PREPARE_DATA
+                || code == DeviceConstants.CMD_DATA;
+    }
+
+    private static int readShort(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) | (buffer[offset + 1] & 0xFF) << 8;
+    }
+
+    public int payloadLength() {
+        return payloadLength;
+    }
+
+    // Read-only little-endian view, valid until the buffer is reused
+    public ByteBuffer payload() {
+        return ByteBuffer.wrap(buffer, payloadOffset, payloadLength).slice().asReadOnlyBuffer()
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public byte[] payloadBytes() {
+        return Arrays.copyOfRange(buffer, payloadOffset, payloadOffset + payloadLength);
+    }
+
+    @Override
+    public String toString() {
+        return "<Response>: [code:" + code + ", status:" + status + ", session:" + sessionId + ", reply:" + replyId
+                + ", payload:" + payloadLength + "]";
+    }
+}
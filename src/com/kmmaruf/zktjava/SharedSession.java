@@ -0,0 +1,231 @@
+package com.kmmaruf.zktjava;
+
+import com.kmmaruf.zktjava.exceptions.ZKErrorConnection;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class SharedSession implements AutoCloseable {
+    /**
+     * Shares one ZK connection between threads. A single worker thread owns the
+     * ZK instance and runs queued tasks one at a time: higher priority first, then
+     * in submission order. So that a steady LIVE/INTERACTIVE load cannot starve
+     * BULK work, every {@code fairnessQuota} tasks the one that has waited
+     * longest runs next whatever its priority.
+     *
+     * Tasks whose deadline passed while queued are not run. A task with a
+     * timeout runs under {@link Base.ZK#withDeadline}, so its device I/O fails
+     * with ZKDeadlineExceeded once the deadline passes and the worker is freed;
+     * CPU work inside the task between commands is not interrupted.
+     *
+     * Priorities only order the queue: a running task is never preempted. A
+     * {@link Base.ZK#liveCapture} task holds the worker until it ends, so LIVE
+     * work queued behind it waits like any other; give it a timeout or end it
+     * with {@link Base.ZK#endLiveCapture} to let queued tasks run.
+     */
+    public enum Priority {
+        LIVE, INTERACTIVE, BULK
+    }
+
+    private final Base.ZK zk;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition queued = lock.newCondition();
+    private final Map<Priority, ArrayDeque<Request<?>>> queues = new EnumMap<>(Priority.class);
+    private final Thread worker;
+    private boolean running = true; // guarded by lock
+    private int inPriorityOrder = 0; // picks since the last fairness pick, worker only
+    public int fairnessQuota = 8;     // tasks taken by priority before the longest waiting one runs, 0 = strict
+    public long closeTimeoutMillis = 5_000; // wait for the running task on close before dropping the connection
+
+    private static class Request<T> {
+        final Priority priority;
+        final long queuedAt;
+        final Deadline deadline;
+        final Base.ZKTask<T> task;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Request(Priority priority, Deadline deadline, Base.ZKTask<T> task) {
+            this.priority = priority;
+            this.queuedAt = System.nanoTime();
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        void run(Base.ZK zk) {
+            try {
+                future.complete(deadline.isNone() ? task.run(zk) : zk.withDeadline(deadline, task));
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    public SharedSession(Base.ZK zk) {
+        this.zk = zk;
+        for (Priority priority : Priority.values()) {
+            queues.put(priority, new ArrayDeque<>());
+        }
+        this.worker = new Thread(this::workLoop, "zk-session");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Queues a task for the session.
+     *
+     * @param priority queue priority, LIVE runs before INTERACTIVE before BULK
+     * @param timeout  total time allowed including queueing, null for none
+     * @param task     work to run with exclusive use of the ZK instance
+     * @return future with the task result; fails with TimeoutException if the
+     *         deadline passes before the task completes
+     */
+    public <T> CompletableFuture<T> submit(Priority priority, Duration timeout, Base.ZKTask<T> task) {
+        Deadline deadline = timeout == null ? Deadline.NONE : Deadline.after(timeout);
+        Request<T> request = new Request<>(priority, deadline, task);
+        lock.lock();
+        try {
+            if (!running) {
+                request.future.completeExceptionally(new ZKErrorConnection("Session is closed."));
+                return request.future;
+            }
+            queues.get(priority).addLast(request);
+            queued.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (timeout != null) {
+            request.future.orTimeout(timeout.toNanos(), TimeUnit.NANOSECONDS);
+        }
+        return request.future;
+    }
+
+    public <T> CompletableFuture<T> submit(Priority priority, Base.ZKTask<T> task) {
+        return submit(priority, null, task);
+    }
+
+    public <T> CompletableFuture<T> submit(Base.ZKTask<T> task) {
+        return submit(Priority.INTERACTIVE, null, task);
+    }
+
+    public int getQueued() {
+        lock.lock();
+        try {
+            int total = 0;
+            for (ArrayDeque<Request<?>> queue : queues.values()) {
+                total += queue.size();
+            }
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Base.ZK getZK() {
+        return zk;
+    }
+
+    // Next request by priority, or the longest waiting one once the quota is used up
+    private Request<?> next() {
+        ArrayDeque<Request<?>> pick = null;
+        ArrayDeque<Request<?>> oldest = null;
+        for (ArrayDeque<Request<?>> queue : queues.values()) {
+            if (queue.isEmpty()) {
+                continue;
+            }
+            if (pick == null) {
+                pick = queue;
+            }
+            if (oldest == null || queue.peekFirst().queuedAt - oldest.peekFirst().queuedAt < 0) {
+                oldest = queue;
+            }
+        }
+        if (pick == null) {
+            return null;
+        }
+        if (fairnessQuota > 0 && ++inPriorityOrder > fairnessQuota) {
+            inPriorityOrder = 0;
+            pick = oldest;
+        } else if (pick == oldest) {
+            inPriorityOrder = 0; // nothing is being passed over
+        }
+        return pick.pollFirst();
+    }
+
+    private void workLoop() {
+        while (true) {
+            Request<?> request;
+            lock.lock();
+            try {
+                while (true) {
+                    if (!running) {
+                        return;
+                    }
+                    request = next();
+                    if (request != null) {
+                        break;
+                    }
+                    queued.await(200, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            if (request.future.isDone()) {
+                continue; // cancelled or timed out while queued
+            }
+            if (request.deadline.isExpired()) {
+                request.future.completeExceptionally(new TimeoutException("Deadline passed while queued"));
+                continue;
+            }
+            request.run(zk);
+        }
+    }
+
+    /**
+     * Stops the worker after the running task. A running live capture is asked
+     * to end; a task still running after {@code closeTimeoutMillis} is
+     * interrupted and the connection dropped so its blocking read returns.
+     * Queued tasks fail. Otherwise the ZK connection is left open.
+     */
+    @Override
+    public void close() {
+        List<Request<?>> left = new ArrayList<>();
+        lock.lock();
+        try {
+            running = false;
+            for (ArrayDeque<Request<?>> queue : queues.values()) {
+                left.addAll(queue);
+                queue.clear();
+            }
+            queued.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Request<?> request : left) {
+            request.future.completeExceptionally(new ZKErrorConnection("Session is closed."));
+        }
+
+        zk.endLiveCapture = true;
+        try {
+            worker.join(closeTimeoutMillis);
+            if (worker.isAlive()) {
+                zk.log.debug("session task still running after %dms, dropping the connection", closeTimeoutMillis);
+                worker.interrupt();
+                zk.dropConnection();
+                worker.join(closeTimeoutMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.kmmaruf.zktjava;
+
+import com.kmmaruf.zktjava.exceptions.ZKDeadlineExceeded;
+import com.kmmaruf.zktjava.exceptions.ZKErrorConnection;
+import com.kmmaruf.zktjava.exceptions.ZKNetworkError;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class SupervisedConnection implements AutoCloseable {
+    /**
+     * Keeps a ZK session usable across network failures. When an operation
+     * fails because the link dropped, the sockets are closed, the session is
+     * opened again with exponential backoff and jitter (CMD_CONNECT, CMD_AUTH
+     * when a password is set), registered events and the disabled state are
+     * restored, and the operation is run again.
+     *
+     * Operations are re-run from the start, so they should be safe to repeat.
+     * Buffered reads can pass a {@link ReadCheckpoint} to continue where they
+     * stopped.
+     */
+    private final Base.ZK zk;
+    public long initialBackoffMillis = 500;
+    public long maxBackoffMillis = 60_000;
+    public int maxAttempts = 0; // reconnect attempts per failure, 0 = until closed
+    private volatile boolean running = true;
+    private int reconnects = 0;
+
+    public SupervisedConnection(Base.ZK zk) {
+        this.zk = zk;
+    }
+
+    public Base.ZK getZK() {
+        return zk;
+    }
+
+    public int getReconnects() {
+        return reconnects;
+    }
+
+    // Link failures are retried; device answers and a passed deadline are not
+    private static boolean isConnectionLost(Exception e) {
+        if (e instanceof ZKDeadlineExceeded) {
+            return false;
+        }
+        return e instanceof ZKNetworkError || e instanceof ZKErrorConnection || e instanceof IOException;
+    }
+
+    /**
+     * Runs a task, reconnecting and running it again each time the connection
+     * is lost.
+     */
+    public <T> T run(Base.ZKTask<T> task) throws Exception {
+        if (!zk.isConnect) {
+            reconnect();
+        }
+        while (true) {
+            try {
+                return task.run(zk);
+            } catch (Exception e) {
+                if (!running || !isConnectionLost(e)) {
+                    throw e;
+                }
+                zk.log.debug("connection lost (%s), reconnecting", e.getMessage());
+                reconnect();
+            }
+        }
+    }
+
+    /**
+     * Live capture that survives reconnects. Returns when
+     * {@code zk.endLiveCapture} is set, the listener breaks the capture, or the
+     * connection is closed.
+     */
+    public void liveCapture(int newTimeout, Base.EventListener listener) throws Exception {
+        run(zk -> {
+            zk.liveCapture(newTimeout, listener);
+            return null;
+        });
+    }
+
+    /**
+     * Drops the current sockets and connects again, waiting between attempts.
+     * Event registrations and the disabled state of the old session are
+     * restored on the new one.
+     */
+    public synchronized void reconnect() throws Exception {
+        int flags = zk.getEventFlags();
+        boolean enabled = zk.isEnabled;
+        zk.dropConnection();
+
+        long backoff = initialBackoffMillis;
+        for (int attempt = 1; ; attempt++) {
+            if (!running) {
+                throw new ZKErrorConnection("Supervised connection is closed.");
+            }
+            try {
+                zk.connect();
+                break;
+            } catch (Exception e) {
+                if (!isConnectionLost(e) || (maxAttempts > 0 && attempt >= maxAttempts)) {
+                    throw e;
+                }
+                zk.metrics.retry("reconnect");
+                // equal jitter: at least half the backoff, so clients that dropped together spread out
+                long sleep = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+                zk.log.debug("reconnect attempt %d failed (%s), next in %dms", attempt, e.getMessage(), sleep);
+                Thread.sleep(sleep);
+                backoff = Math.min(maxBackoffMillis, backoff * 2);
+                zk.dropConnection();
+            }
+        }
+
+        if (!enabled) {
+            zk.disableDevice();
+        }
+        if (flags != 0) {
+            zk.registerEvent(flags);
+        }
+        reconnects++;
+        zk.log.debug("reconnected (%d so far)", reconnects);
+    }
+
+    /**
+     * Stops further reconnects and ends a running live capture at its next
+     * timeout. The ZK instance stays open for the caller to disconnect.
+     */
+    @Override
+    public void close() {
+        running = false;
+        zk.endLiveCapture = true;
+    }
+}
@@ -0,0 +1,168 @@
+package com.kmmaruf.zktjava;
+
+import java.nio.ByteBuffer;
+
+public class TableReader {
+    /**
+     * Streams any device table read through _CMD_PREPARE_BUFFER into a
+     * listener, one record at a time. A table is a (command, fct, ext) triple;
+     * its records are cut by a fixed-size or a length-prefixed decoder and
+     * turned into objects by a {@link RecordParser}, so supporting another
+     * table only takes a parser. Memory stays at one chunk plus one record
+     * however long the table is.
+     *
+     * Record layouts of the operation log and workcode tables are not in the
+     * protocol notes this library follows; the ones below are assumed from
+     * common firmware and documented on each parser. Callers can pass their own
+     * parser or record size for devices that differ.
+     */
+    private final Base.ZK zk;
+
+    public TableReader(Base.ZK zk) {
+        this.zk = zk;
+    }
+
+    public static class Table {
+        public final String name;
+        public final int command;
+        public final int fct;
+        public final int ext;
+
+        public Table(String name, int command, int fct, int ext) {
+            this.name = name;
+            this.command = command;
+            this.fct = fct;
+            this.ext = ext;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("<Table>: %s [%d/%d/%d]", name, command, fct, ext);
+        }
+    }
+
+    public static final Table OPLOG = new Table("oplog", DeviceConstants.CMD_OPLOG_RRQ, DeviceConstants.FCT_OPLOG, 0);
+    public static final Table WORKCODE = new Table("workcode", DeviceConstants.CMD_DB_RRQ, DeviceConstants.FCT_WORKCODE, 0);
+    public static final Table SMS = new Table("sms", DeviceConstants.CMD_DB_RRQ, DeviceConstants.FCT_SMS, 0);
+    public static final Table UDATA = new Table("udata", DeviceConstants.CMD_DB_RRQ, DeviceConstants.FCT_UDATA, 0);
+
+    // Turns one whole record (little-endian, position 0) into an object
+    public interface RecordParser<T> {
+        T parse(ByteBuffer record) throws Exception;
+    }
+
+    /**
+     * Decoder for tables of {@code recordSize} byte records. A trailing partial
+     * record, left when the device was writing during the read, is dropped.
+     */
+    public static <T> RecordDecoder fixed(int recordSize, RecordParser<T> parser, Base.RecordListener<T> listener) {
+        if (recordSize <= 0) {
+            throw new IllegalArgumentException("recordSize must be positive");
+        }
+        return new RecordDecoder() {
+            @Override
+            protected int headerLength() {
+                return recordSize;
+            }
+
+            @Override
+            protected int recordLength(ByteBuffer header) {
+                return recordSize;
+            }
+
+            @Override
+            protected boolean boundedByTotalSize() {
+                return true;
+            }
+
+            @Override
+            protected void record(ByteBuffer record) throws Exception {
+                listener.onRecord(parser.parse(record));
+            }
+        };
+    }
+
+    /**
+     * Decoder for tables whose records start with their own length: an
+     * unsigned short at {@code lengthOffset} counting the whole record, as in
+     * the template table.
+     */
+    public static <T> RecordDecoder variable(int lengthOffset, RecordParser<T> parser,
+            Base.RecordListener<T> listener) {
+        return new RecordDecoder() {
+            @Override
+            protected int headerLength() {
+                return lengthOffset + 2;
+            }
+
+            @Override
+            protected int recordLength(ByteBuffer header) {
+                return header.getShort(lengthOffset) & 0xFFFF;
+            }
+
+            @Override
+            protected boolean boundedByTotalSize() {
+                return true;
+            }
+
+            @Override
+            protected void record(ByteBuffer record) throws Exception {
+                listener.onRecord(parser.parse(record));
+            }
+        };
+    }
+
+    /**
+     * Reads {@code table} through {@code decoder}.
+     *
+     * @return number of records decoded
+     */
+    public int read(Table table, RecordDecoder decoder) throws Exception {
+        int size = zk.readWithBuffer(table.command, table.fct, table.ext, decoder);
+        if (size < 4) {
+            zk.log.debug("WRN: no %s data", table.name);
+            return 0;
+        }
+        zk.metrics.recordsDecoded(table.name, decoder.getRecords(), decoder.getDecodeNanos());
+        return decoder.getRecords();
+    }
+
+    public <T> int read(Table table, int recordSize, RecordParser<T> parser, Base.RecordListener<T> listener)
+            throws Exception {
+        return read(table, fixed(recordSize, parser, listener));
+    }
+
+    /**
+     * Assumed 16 byte operation log record: admin uid H, operation B, 1 byte
+     * reserved, packed time I, four parameters H.
+     */
+    public static final int OPLOG_RECORD_SIZE = 16;
+
+    public static OpLogEntry parseOpLog(ByteBuffer record) {
+        int[] params = new int[4];
+        for (int i = 0; i < params.length; i++) {
+            params[i] = record.getShort(8 + 2 * i) & 0xFFFF;
+        }
+        return new OpLogEntry(record.getShort(0) & 0xFFFF, record.get(2) & 0xFF,
+                Base.decodePackedTime(Integer.toUnsignedLong(record.getInt(4))), params);
+    }
+
+    public int readOpLog(Base.RecordListener<OpLogEntry> listener) throws Exception {
+        return read(OPLOG, OPLOG_RECORD_SIZE, TableReader::parseOpLog, listener);
+    }
+
+    /**
+     * Assumed 28 byte workcode record: id I, then the code as 24 NUL padded
+     * bytes in the session's encoding.
+     */
+    public static final int WORKCODE_RECORD_SIZE = 28;
+
+    public int readWorkCodes(Base.RecordListener<WorkCode> listener) throws Exception {
+        TextCodec text = zk.textCodec();
+        byte[] code = new byte[WORKCODE_RECORD_SIZE - 4];
+        return read(WORKCODE, WORKCODE_RECORD_SIZE, record -> {
+            record.get(4, code);
+            return new WorkCode(record.getInt(0), text.decode(code));
+        }, listener);
+    }
+}
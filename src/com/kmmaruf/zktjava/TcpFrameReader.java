@@ -0,0 +1,169 @@
+package com.kmmaruf.zktjava;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+public class TcpFrameReader {
+    /**
+     * Reads TCP frames (8 byte top: MACHINE_PREPARE_DATA_1/2 and length,
+     * followed by the packet) through a fixed ring buffer. Frames are parsed
+     * incrementally, so a device that splits or coalesces frames costs no extra
+     * arrays, and large payloads are read straight into the caller's buffer.
+     * All reads on the socket must go through the same reader, since bytes of
+     * the next frame may already be buffered.
+     */
+    private final InputStream in;
+    private final byte[] ring;
+    private int head = 0;   // next byte to consume
+    private int count = 0;  // buffered bytes
+    private int frameRemaining = 0;
+    private long bytesRead = 0;
+
+    public TcpFrameReader(InputStream in, int capacity) {
+        this.in = in;
+        this.ring = new byte[capacity];
+    }
+
+    public int buffered() {
+        return count;
+    }
+
+    // Unread bytes of the current frame
+    public int frameRemaining() {
+        return frameRemaining;
+    }
+
+    // Bytes taken from the socket so far
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Waits for the next top and returns the packet length (reply header plus
+     * payload). Nothing is consumed if the read times out before the top is
+     * complete. Any unread rest of the previous frame is skipped.
+     */
+    public int nextFrame() throws IOException {
+        if (frameRemaining > 0) {
+            skip(frameRemaining);
+        }
+        fill(8);
+        int magic1 = peekShort(0);
+        int magic2 = peekShort(2);
+        if (magic1 != DeviceConstants.MACHINE_PREPARE_DATA_1 || magic2 != DeviceConstants.MACHINE_PREPARE_DATA_2) {
+            throw new IOException("TCP packet invalid");
+        }
+        int length = peekShort(4) | peekShort(6) << 16;
+        if (length < 0) {
+            throw new IOException("TCP packet invalid");
+        }
+        consume(8);
+        frameRemaining = length;
+        return length;
+    }
+
+    /**
+     * Reads up to {@code len} bytes: buffered bytes first, otherwise a single
+     * socket read. Returns -1 at end of stream.
+     */
+    public int read(byte[] dst, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int n;
+        if (count > 0) {
+            n = Math.min(len, count);
+            copyOut(dst, off, n);
+        } else if (len >= ring.length / 2) {
+            n = in.read(dst, off, len); // large read, skip the ring
+            if (n < 0) {
+                return -1;
+            }
+            bytesRead += n;
+        } else {
+            if (fillOnce() < 0) {
+                return -1;
+            }
+            n = Math.min(len, count);
+            copyOut(dst, off, n);
+        }
+        frameRemaining = Math.max(0, frameRemaining - n);
+        return n;
+    }
+
+    public void readFully(byte[] dst, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = read(dst, off, len);
+            if (n < 0) {
+                throw new IOException("Connection closed by device");
+            }
+            off += n;
+            len -= n;
+        }
+    }
+
+    public void skip(int len) throws IOException {
+        while (len > 0) {
+            if (count == 0 && fillOnce() < 0) {
+                throw new IOException("Connection closed by device");
+            }
+            int n = Math.min(len, count);
+            consume(n);
+            frameRemaining = Math.max(0, frameRemaining - n);
+            len -= n;
+        }
+    }
+
+    // Drops anything buffered, e.g. after a timeout left a frame half read
+    public void reset() {
+        head = 0;
+        count = 0;
+        frameRemaining = 0;
+    }
+
+    private int peekShort(int offset) {
+        return (ring[(head + offset) % ring.length] & 0xFF)
+                | (ring[(head + offset + 1) % ring.length] & 0xFF) << 8;
+    }
+
+    private void consume(int n) {
+        head = (head + n) % ring.length;
+        count -= n;
+        if (count == 0) {
+            head = 0;
+        }
+    }
+
+    private void copyOut(byte[] dst, int off, int n) {
+        int first = Math.min(n, ring.length - head);
+        System.arraycopy(ring, head, dst, off, first);
+        if (first < n) {
+            System.arraycopy(ring, 0, dst, off + first, n - first);
+        }
+        consume(n);
+    }
+
+    private void fill(int needed) throws IOException {
+        while (count < needed) {
+            if (fillOnce() < 0) {
+                throw new IOException("Connection closed by device");
+            }
+        }
+    }
+
+    // One socket read into the free space after the buffered bytes
+    private int fillOnce() throws IOException {
+        if (count == ring.length) {
+            return 0;
+        }
+        int tail = (head + count) % ring.length;
+        int space = tail >= head ? ring.length - tail : head - tail;
+        int n = in.read(ring, tail, space);
+        if (n < 0) {
+            return -1;
+        }
+        count += n;
+        bytesRead += n;
+        return n;
+    }
+}
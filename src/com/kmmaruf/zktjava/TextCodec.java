@@ -0,0 +1,168 @@
+package com.kmmaruf.zktjava;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class TextCodec {
+    /**
+     * Text fields of one device session: NUL terminated, fixed width, in the
+     * device's charset. The encoder and decoder are created once and reused,
+     * and fields that are plain ASCII (numeric user ids, Latin names) are copied
+     * byte for byte without going through them. Not thread-safe, like the
+     * session that owns it.
+     */
+    private final String name;
+    private final Charset charset;
+    private final boolean asciiCompatible;
+    private final CharsetDecoder decoder;
+    private final CharsetEncoder encoder;
+    private CharBuffer chars = CharBuffer.allocate(64);
+    private ByteBuffer bytes = ByteBuffer.allocate(64);
+
+    public TextCodec(String encoding) {
+        this(encoding, Charset.forName(encoding));
+    }
+
+    public TextCodec(Charset charset) {
+        this(charset.name(), charset);
+    }
+
+    private TextCodec(String name, Charset charset) {
+        this.name = name;
+        this.charset = charset;
+        this.decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.asciiCompatible = isAsciiCompatible(charset);
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    // Charset name as given, e.g. "UTF-8" or "cp1256"
+    public String getName() {
+        return name;
+    }
+
+    // True if ASCII text has the same bytes in this charset, so the fast path applies
+    private static boolean isAsciiCompatible(Charset charset) {
+        byte[] ascii = new byte[128];
+        for (int i = 0; i < ascii.length; i++) {
+            ascii[i] = (byte) i;
+        }
+        String text = new String(ascii, StandardCharsets.ISO_8859_1);
+        return Arrays.equals(text.getBytes(charset), ascii) && new String(ascii, charset).equals(text);
+    }
+
+    // Text up to the first NUL of b[offset, offset + length)
+    public String decode(byte[] b, int offset, int length) {
+        if (!asciiCompatible) {
+            // a zero byte is not a terminator here (e.g. UTF-16), cut after decoding
+            String decoded = decodeRange(b, offset, length);
+            int nul = decoded.indexOf('\0');
+            return nul < 0 ? decoded : decoded.substring(0, nul);
+        }
+        int end = offset;
+        int limit = offset + length;
+        boolean ascii = true;
+        while (end < limit && b[end] != 0) {
+            ascii &= b[end] >= 0;
+            end++;
+        }
+        if (end == offset) {
+            return "";
+        }
+        if (ascii) {
+            // Latin-1 maps each byte to one char and stays a compact string
+            return new String(b, offset, end - offset, StandardCharsets.ISO_8859_1);
+        }
+        return decodeRange(b, offset, end - offset);
+    }
+
+    private String decodeRange(byte[] b, int offset, int length) {
+        int needed = (int) Math.ceil(length * (double) decoder.maxCharsPerByte());
+        if (chars.capacity() < needed) {
+            chars = CharBuffer.allocate(needed);
+        }
+        chars.clear();
+        decoder.reset();
+        decoder.decode(ByteBuffer.wrap(b, offset, length), chars, true);
+        decoder.flush(chars);
+        chars.flip();
+        return chars.toString();
+    }
+
+    public String decode(byte[] b) {
+        return decode(b, 0, b.length);
+    }
+
+    // Encoded bytes of value, without terminator
+    public byte[] encode(String value) {
+        if (value == null || value.isEmpty()) {
+            return new byte[0];
+        }
+        if (asciiCompatible && isAscii(value)) {
+            return value.getBytes(StandardCharsets.ISO_8859_1);
+        }
+        ByteBuffer out = encodeToBuffer(value);
+        byte[] result = new byte[out.remaining()];
+        out.get(result);
+        return result;
+    }
+
+    /**
+     * Writes value into the fixed width field dst[offset, offset + length),
+     * truncated to fit and padded with NULs.
+     */
+    public void encode(String value, byte[] dst, int offset, int length) {
+        int n = 0;
+        if (value != null && !value.isEmpty()) {
+            if (asciiCompatible && isAscii(value)) {
+                n = Math.min(value.length(), length);
+                for (int i = 0; i < n; i++) {
+                    dst[offset + i] = (byte) value.charAt(i);
+                }
+            } else {
+                ByteBuffer out = encodeToBuffer(value);
+                n = Math.min(out.remaining(), length);
+                out.get(dst, offset, n);
+            }
+        }
+        Arrays.fill(dst, offset + n, offset + length, (byte) 0);
+    }
+
+    private static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ByteBuffer encodeToBuffer(String value) {
+        int needed = (int) Math.ceil(value.length() * (double) encoder.maxBytesPerChar()) + 8;
+        if (bytes.capacity() < needed) {
+            bytes = ByteBuffer.allocate(needed);
+        }
+        bytes.clear();
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(value), bytes, true);
+        encoder.flush(bytes);
+        bytes.flip();
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "<TextCodec>: [" + charset.name() + (asciiCompatible ? ", ascii" : "") + "]";
+    }
+}
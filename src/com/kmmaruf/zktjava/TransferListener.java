@@ -0,0 +1,6 @@
+package com.kmmaruf.zktjava;
+
+public interface TransferListener {
+    // Called once when a transfer starts and after every chunk, on the transfer thread
+    void onProgress(TransferProgress progress);
+}
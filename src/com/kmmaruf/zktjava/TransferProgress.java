@@ -0,0 +1,61 @@
+package com.kmmaruf.zktjava;
+
+public class TransferProgress {
+    /**
+     * State of one chunked transfer, updated in place after each chunk. Copy
+     * the values if they are needed after the callback returns.
+     */
+    public final String operation;
+    public final long totalBytes;
+    public final int totalChunks;
+    private final long startedNanos = System.nanoTime();
+    private long bytesDone = 0;
+    private int chunksDone = 0;
+
+    public TransferProgress(String operation, long totalBytes, int totalChunks) {
+        this.operation = operation;
+        this.totalBytes = totalBytes;
+        this.totalChunks = totalChunks;
+    }
+
+    void advance(int bytes) {
+        bytesDone += bytes;
+        chunksDone++;
+    }
+
+    public long getBytesDone() {
+        return bytesDone;
+    }
+
+    public int getChunksDone() {
+        return chunksDone;
+    }
+
+    public long getElapsedMillis() {
+        return (System.nanoTime() - startedNanos) / 1_000_000;
+    }
+
+    public double getFraction() {
+        return totalBytes <= 0 ? 0 : (double) bytesDone / totalBytes;
+    }
+
+    public double getBytesPerSecond() {
+        long nanos = System.nanoTime() - startedNanos;
+        return nanos <= 0 ? 0 : bytesDone * 1e9 / nanos;
+    }
+
+    // Estimated time left at the average rate so far, -1 before the first chunk
+    public long getEtaMillis() {
+        double rate = getBytesPerSecond();
+        if (bytesDone == 0 || rate <= 0) {
+            return -1;
+        }
+        return (long) ((totalBytes - bytesDone) * 1000 / rate);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<TransferProgress>: %s %d/%d bytes, %d/%d chunks, %.0f B/s, eta %dms",
+                operation, bytesDone, totalBytes, chunksDone, totalChunks, getBytesPerSecond(), getEtaMillis());
+    }
+}
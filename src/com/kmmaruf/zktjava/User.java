@@ -2,11 +2,13 @@ package com.kmmaruf.zktjava;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
 
 public class User {
+    // Charset of repack29/repack73 without an argument; sessions pass their own
     public static String ENCODING = "UTF-8";
 
     public int uid;
@@ -54,11 +56,19 @@ public class User {
         return json;
     }
 
-    // repack29: <BHB5s8sIxBhI>
+    /**
+     * @deprecated encodes with the global {@link #ENCODING}; pass the device's
+     * charset, e.g. {@code zk.textCodec().getCharset()}
+     */
+    @Deprecated
     public byte[] repack29() {
-        byte[] pwdBytes = safeEncode(password, 5);
-        byte[] nameBytes = safeEncode(name, 8);
-        byte[] userIdBytes = safeEncode(userId, 4); // assuming 4 bytes for int
+        return repack29(Charset.forName(ENCODING));
+    }
+
+    // repack29: <BHB5s8sIxBhI>
+    public byte[] repack29(Charset charset) {
+        byte[] pwdBytes = safeEncode(password, 5, charset);
+        byte[] nameBytes = safeEncode(name, 8, charset);
         int group = groupId.isEmpty() ? 0 : Integer.parseInt(groupId);
 
         ByteBuffer buffer = ByteBuffer.allocate(29);
@@ -75,12 +85,21 @@ public class User {
         return buffer.array();
     }
 
-    // repack73: <BHB8s24sIB7sx24s>
+    /**
+     * @deprecated encodes with the global {@link #ENCODING}; pass the device's
+     * charset, e.g. {@code zk.textCodec().getCharset()}
+     */
+    @Deprecated
     public byte[] repack73() {
-        byte[] pwdBytes = safeEncode(password, 8);
-        byte[] nameBytes = safeEncode(name, 24);
-        byte[] groupBytes = safeEncode(groupId, 7);
-        byte[] userIdBytes = safeEncode(userId, 24);
+        return repack73(Charset.forName(ENCODING));
+    }
+
+    // repack73: <BHB8s24sIB7sx24s>
+    public byte[] repack73(Charset charset) {
+        byte[] pwdBytes = safeEncode(password, 8, charset);
+        byte[] nameBytes = safeEncode(name, 24, charset);
+        byte[] groupBytes = safeEncode(groupId, 7, charset);
+        byte[] userIdBytes = safeEncode(userId, 24, charset);
 
         ByteBuffer buffer = ByteBuffer.allocate(73);
         buffer.order(ByteOrder.LITTLE_ENDIAN);
@@ -97,14 +116,12 @@ public class User {
         return buffer.array();
     }
 
-    // Utility: encode string to fixed-size byte array
-    private byte[] safeEncode(String value, int length) {
+    // Utility: encode string to fixed-size byte array, unmappable chars become the charset's replacement
+    private static byte[] safeEncode(String value, int length, Charset charset) {
         byte[] raw = new byte[length];
-        try {
-            byte[] encoded = value.getBytes(ENCODING);
+        if (value != null) {
+            byte[] encoded = value.getBytes(charset);
             System.arraycopy(encoded, 0, raw, 0, Math.min(encoded.length, length));
-        } catch (Exception e) {
-            // Ignore encoding errors
         }
         return raw;
     }
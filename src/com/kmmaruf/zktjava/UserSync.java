@@ -0,0 +1,224 @@
+package com.kmmaruf.zktjava;
+
+import com.kmmaruf.zktjava.exceptions.ZKErrorResponse;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class UserSync {
+    /**
+     * Makes a device converge on a desired user/template set. The device state is
+     * downloaded once, compared by userId (User.equals for the record, content hash
+     * for templates) and only the difference is written.
+     */
+    private final Base.ZK zk;
+    public boolean deleteMissing = false; // also delete device users missing from the desired set, off by default
+    public int templateBatchSize = 100;   // users per HRSaveUserTemplates call
+
+    public UserSync(Base.ZK zk) {
+        this.zk = zk;
+    }
+
+    public static class Plan {
+        public final List<User> inserts = new ArrayList<>();
+        public final List<User> updates = new ArrayList<>();
+        public final List<User> deletes = new ArrayList<>();
+        public final Map<User, List<Finger>> templateWrites = new LinkedHashMap<>(); // user + full template set
+        public final Map<User, List<Finger>> templateDeletes = new LinkedHashMap<>(); // fids no longer wanted
+        public int unchanged = 0;
+
+        public boolean isEmpty() {
+            return inserts.isEmpty() && updates.isEmpty() && deletes.isEmpty() && templateWrites.isEmpty()
+                    && templateDeletes.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("<Plan>: [insert: %d, update: %d, delete: %d, templates: +%d/-%d users, unchanged: %d]",
+                    inserts.size(), updates.size(), deletes.size(), templateWrites.size(), templateDeletes.size(),
+                    unchanged);
+        }
+    }
+
+    public static class Result {
+        public final Plan plan;
+        public final List<Map.Entry<User, Exception>> failed = new ArrayList<>();
+        public int written = 0;
+        public int deleted = 0;
+
+        Result(Plan plan) {
+            this.plan = plan;
+        }
+
+        public boolean isSuccess() {
+            return failed.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("<SyncResult>: [written: %d, deleted: %d, failed: %d]", written, deleted,
+                    failed.size());
+        }
+    }
+
+    /**
+     * Computes the changes needed on the device.
+     *
+     * @param desired users keyed to their desired templates; a null template list
+     *                leaves that user's templates untouched
+     * @return plan, users carry their device uid
+     */
+    public Plan plan(Map<User, List<Finger>> desired) throws Exception {
+        Plan plan = new Plan();
+        List<User> deviceUsers = zk.getUsers();
+        int nextUid = zk.nextUid;
+
+        boolean needTemplates = desired.values().stream().anyMatch(fingers -> fingers != null);
+        Map<Integer, Map<Integer, Finger>> deviceTemplates = new HashMap<>();
+        if (needTemplates) {
+            for (Finger finger : zk.getTemplates()) {
+                deviceTemplates.computeIfAbsent(finger.getUid(), uid -> new HashMap<>()).put(finger.fid, finger);
+            }
+        }
+
+        Map<String, User> byUserId = new HashMap<>();
+        Set<Integer> usedUids = new HashSet<>();
+        for (User user : deviceUsers) {
+            byUserId.put(user.userId, user);
+            usedUids.add(user.uid);
+        }
+
+        Set<String> wanted = new HashSet<>();
+        for (Map.Entry<User, List<Finger>> entry : desired.entrySet()) {
+            User want = entry.getKey();
+            List<Finger> fingers = entry.getValue();
+            wanted.add(want.userId);
+
+            User current = byUserId.get(want.userId);
+            int uid;
+            if (current != null) {
+                uid = current.uid;
+            } else {
+                while (usedUids.contains(nextUid))
+                    nextUid++;
+                uid = nextUid++;
+                usedUids.add(uid);
+            }
+            User target = new User(uid, want.name, want.privilege, want.password, want.groupId, want.userId,
+                    want.card);
+
+            // the device truncates names and passwords, compare what it would store
+            boolean userChanged = current == null || !current.equals(zk.storedForm(target));
+            boolean templatesChanged = false;
+            List<Finger> targetFingers = null;
+            List<Finger> removed = new ArrayList<>();
+            if (fingers != null) {
+                Map<Integer, Finger> onDevice = deviceTemplates.getOrDefault(uid, new HashMap<>());
+                targetFingers = new ArrayList<>(fingers.size());
+                Set<Integer> fids = new HashSet<>();
+                for (Finger finger : fingers) {
+                    fids.add(finger.fid);
+                    Finger have = onDevice.get(finger.fid);
+                    if (!finger.sameContent(have))
+                        templatesChanged = true;
+                    targetFingers.add(new Finger(uid, finger.fid, finger.getValid(), finger.getTemplate()));
+                }
+                for (Finger have : onDevice.values()) {
+                    if (!fids.contains(have.fid))
+                        removed.add(have);
+                }
+            }
+
+            if (current == null)
+                plan.inserts.add(target);
+            else if (userChanged)
+                plan.updates.add(target);
+
+            if (templatesChanged)
+                plan.templateWrites.put(target, targetFingers);
+            if (!removed.isEmpty())
+                plan.templateDeletes.put(target, removed);
+            if (!userChanged && !templatesChanged && removed.isEmpty())
+                plan.unchanged++;
+        }
+
+        if (deleteMissing) {
+            for (User user : deviceUsers) {
+                if (!wanted.contains(user.userId))
+                    plan.deletes.add(user);
+            }
+        }
+        return plan;
+    }
+
+    // Applies a plan computed by plan()
+    public Result apply(Plan plan) throws Exception {
+        Result result = new Result(plan);
+
+        if (!plan.deletes.isEmpty()) {
+            Base.ZK.BatchResult deleted = zk.deleteUsers(plan.deletes);
+            result.deleted += deleted.succeeded.size();
+            result.failed.addAll(deleted.failed);
+        }
+
+        for (Map.Entry<User, List<Finger>> entry : plan.templateDeletes.entrySet()) {
+            for (Finger finger : entry.getValue()) {
+                if (!zk.deleteUserTemplate(finger.getUid(), finger.fid, null)) {
+                    result.failed.add(new AbstractMap.SimpleEntry<>(entry.getKey(),
+                            new ZKErrorResponse("Can't delete template " + finger.getUid() + "/" + finger.fid)));
+                }
+            }
+        }
+
+        // users whose templates are rewritten go with their record through HRSaveUserTemplates
+        List<User> userOnly = new ArrayList<>();
+        for (User user : plan.inserts) {
+            if (!plan.templateWrites.containsKey(user))
+                userOnly.add(user);
+        }
+        for (User user : plan.updates) {
+            if (!plan.templateWrites.containsKey(user))
+                userOnly.add(user);
+        }
+        if (!userOnly.isEmpty()) {
+            Base.ZK.BatchResult written = zk.setUsers(userOnly);
+            result.written += written.succeeded.size();
+            result.failed.addAll(written.failed);
+        }
+
+        List<Map.Entry<User, List<Finger>>> batch = new ArrayList<>();
+        for (Map.Entry<User, List<Finger>> entry : plan.templateWrites.entrySet()) {
+            batch.add(new AbstractMap.SimpleEntry<>(entry.getKey(), entry.getValue()));
+            if (batch.size() >= templateBatchSize) {
+                saveTemplates(batch, result);
+                batch = new ArrayList<>();
+            }
+        }
+        if (!batch.isEmpty())
+            saveTemplates(batch, result);
+
+        return result;
+    }
+
+    // Fetches the device state once, then writes only the difference
+    public Result sync(Map<User, List<Finger>> desired) throws Exception {
+        return apply(plan(desired));
+    }
+
+    private void saveTemplates(List<Map.Entry<User, List<Finger>>> batch, Result result) throws Exception {
+        try {
+            zk.HRSaveUserTemplates(batch);
+            result.written += batch.size();
+        } catch (ZKErrorResponse e) {
+            for (Map.Entry<User, List<Finger>> entry : batch)
+                result.failed.add(new AbstractMap.SimpleEntry<>(entry.getKey(), e));
+        }
+    }
+}
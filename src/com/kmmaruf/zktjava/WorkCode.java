@@ -0,0 +1,16 @@
+package com.kmmaruf.zktjava;
+
+public class WorkCode {
+    public final int id;
+    public final String code;
+
+    public WorkCode(int id, String code) {
+        this.id = id;
+        this.code = code;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<WorkCode>: %d %s", id, code);
+    }
+}
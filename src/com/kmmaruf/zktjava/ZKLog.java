@@ -0,0 +1,160 @@
+package com.kmmaruf.zktjava;
+
+import java.lang.System.Logger.Level;
+import java.util.function.Supplier;
+
+public class ZKLog {
+    /**
+     * Leveled logging facade backed by System.Logger. Nothing is formatted or
+     * allocated unless the level is enabled, so calls can stay in decode loops.
+     * The console level mirrors the old 'verbose' output to System.out.
+     * Library diagnostics are logged at DEBUG so a non-verbose session stays
+     * quiet unless the System.Logger backend is configured to show them.
+     */
+    private final System.Logger logger;
+    public volatile Level consoleLevel = Level.OFF;
+
+    public ZKLog(String name) {
+        this.logger = System.getLogger(name);
+    }
+
+    public ZKLog(String name, Level consoleLevel) {
+        this(name);
+        this.consoleLevel = consoleLevel;
+    }
+
+    public boolean isLoggable(Level level) {
+        return level.getSeverity() >= consoleLevel.getSeverity() || logger.isLoggable(level);
+    }
+
+    public boolean isDebug() {
+        return isLoggable(Level.DEBUG);
+    }
+
+    public boolean isTrace() {
+        return isLoggable(Level.TRACE);
+    }
+
+    private void emit(Level level, String message) {
+        if (level.getSeverity() >= consoleLevel.getSeverity()) {
+            System.out.println(message);
+        } else {
+            logger.log(level, message);
+        }
+    }
+
+    public void log(Level level, String message) {
+        if (isLoggable(level))
+            emit(level, message);
+    }
+
+    public void log(Level level, Supplier<String> message) {
+        if (isLoggable(level))
+            emit(level, message.get());
+    }
+
+    public void log(Level level, String format, Object arg) {
+        if (isLoggable(level))
+            emit(level, String.format(format, arg));
+    }
+
+    public void log(Level level, String format, Object arg1, Object arg2) {
+        if (isLoggable(level))
+            emit(level, String.format(format, arg1, arg2));
+    }
+
+    public void log(Level level, String format, Object arg1, Object arg2, Object arg3) {
+        if (isLoggable(level))
+            emit(level, String.format(format, arg1, arg2, arg3));
+    }
+
+    // primitive overloads keep disabled calls free of boxing
+    public void log(Level level, String format, long arg) {
+        if (isLoggable(level))
+            emit(level, String.format(format, arg));
+    }
+
+    public void log(Level level, String format, long arg1, long arg2) {
+        if (isLoggable(level))
+            emit(level, String.format(format, arg1, arg2));
+    }
+
+    public void log(Level level, String format, long arg1, long arg2, long arg3) {
+        if (isLoggable(level))
+            emit(level, String.format(format, arg1, arg2, arg3));
+    }
+
+    public void log(Level level, String format, Object... args) {
+        if (isLoggable(level))
+            emit(level, String.format(format, args));
+    }
+
+    // Hex dump of data[offset, offset + length), formatted only when enabled
+    public void hex(Level level, String prefix, byte[] data, int offset, int length) {
+        if (!isLoggable(level) || data == null)
+            return;
+        int end = Math.min(data.length, offset + length);
+        StringBuilder sb = new StringBuilder(prefix.length() + 2 * Math.max(0, end - offset));
+        sb.append(prefix);
+        for (int i = offset; i < end; i++) {
+            sb.append(Character.forDigit((data[i] >> 4) & 0xF, 16)).append(Character.forDigit(data[i] & 0xF, 16));
+        }
+        emit(level, sb.toString());
+    }
+
+    public void hex(Level level, String prefix, byte[] data) {
+        hex(level, prefix, data, 0, data == null ? 0 : data.length);
+    }
+
+    public void trace(String message) {
+        log(Level.TRACE, message);
+    }
+
+    public void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    public void debug(Supplier<String> message) {
+        log(Level.DEBUG, message);
+    }
+
+    public void debug(String format, Object arg) {
+        log(Level.DEBUG, format, arg);
+    }
+
+    public void debug(String format, Object arg1, Object arg2) {
+        log(Level.DEBUG, format, arg1, arg2);
+    }
+
+    public void debug(String format, Object arg1, Object arg2, Object arg3) {
+        log(Level.DEBUG, format, arg1, arg2, arg3);
+    }
+
+    public void debug(String format, long arg) {
+        log(Level.DEBUG, format, arg);
+    }
+
+    public void debug(String format, long arg1, long arg2) {
+        log(Level.DEBUG, format, arg1, arg2);
+    }
+
+    public void debug(String format, long arg1, long arg2, long arg3) {
+        log(Level.DEBUG, format, arg1, arg2, arg3);
+    }
+
+    public void debug(String format, Object... args) {
+        log(Level.DEBUG, format, args);
+    }
+
+    public void warn(String message) {
+        log(Level.WARNING, message);
+    }
+
+    public void warn(String format, Object arg) {
+        log(Level.WARNING, format, arg);
+    }
+
+    public void warn(String format, long arg) {
+        log(Level.WARNING, format, arg);
+    }
+}
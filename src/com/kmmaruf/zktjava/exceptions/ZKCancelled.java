@@ -0,0 +1,15 @@
+package com.kmmaruf.zktjava.exceptions;
+
+public class ZKCancelled extends ZKError{
+    public ZKCancelled() {
+        super();
+    }
+
+    public ZKCancelled(String message) {
+        super(message);
+    }
+
+    public ZKCancelled(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,15 @@
+package com.kmmaruf.zktjava.exceptions;
+
+public class ZKDeadlineExceeded extends ZKNetworkError{
+    public ZKDeadlineExceeded() {
+        super();
+    }
+
+    public ZKDeadlineExceeded(String message) {
+        super(message);
+    }
+
+    public ZKDeadlineExceeded(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,34 @@
+package com.kmmaruf.zktjava.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.kmmaruf.zktjava.ChunkTransfer")
+@Label("Chunk Transfer")
+@Category({"ZK", "Transfer"})
+@Description("Buffered read or write of a data chunk, including retries and waits")
+public class ChunkTransferEvent extends Event {
+    @Label("Device")
+    public String device;
+
+    @Label("Operation")
+    public String operation;
+
+    @Label("Offset")
+    public long offset;
+
+    @Label("Requested Size")
+    @DataAmount
+    public long size;
+
+    @Label("Bytes Transferred")
+    @DataAmount
+    public long bytes;
+
+    @Label("Retries")
+    public int retries;
+}
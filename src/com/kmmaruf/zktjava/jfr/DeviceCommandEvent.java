@@ -0,0 +1,37 @@
+package com.kmmaruf.zktjava.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.kmmaruf.zktjava.DeviceCommand")
+@Label("Device Command")
+@Category({"ZK", "Device"})
+@Description("One request/response round-trip with a device")
+public class DeviceCommandEvent extends Event {
+    @Label("Device")
+    public String device;
+
+    @Label("Command")
+    public int command;
+
+    @Label("Command Name")
+    public String commandName;
+
+    @Label("Response Code")
+    public int responseCode;
+
+    @Label("Bytes Sent")
+    @DataAmount
+    public long bytesSent;
+
+    @Label("Bytes Received")
+    @DataAmount
+    public long bytesReceived;
+
+    @Label("Success")
+    public boolean success;
+}
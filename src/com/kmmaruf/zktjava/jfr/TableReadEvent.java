@@ -0,0 +1,32 @@
+package com.kmmaruf.zktjava.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+@Name("com.kmmaruf.zktjava.TableRead")
+@Label("Table Read")
+@Category({"ZK", "Decode"})
+@Description("Streaming download of a table and its parsing into records; Decode Time is the parsing share")
+public class TableReadEvent extends Event {
+    @Label("Device")
+    public String device;
+
+    @Label("Table")
+    public String table;
+
+    @Label("Records")
+    public long records;
+
+    @Label("Input Size")
+    @DataAmount
+    public long bytes;
+
+    @Label("Decode Time")
+    @Timespan(Timespan.NANOSECONDS)
+    public long decodeTime;
+}
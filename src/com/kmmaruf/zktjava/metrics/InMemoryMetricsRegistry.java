@@ -0,0 +1,122 @@
+package com.kmmaruf.zktjava.metrics;
+
+import com.kmmaruf.zktjava.DeviceConstants;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class InMemoryMetricsRegistry implements MetricsRegistry {
+    /**
+     * Default registry: keeps everything in memory, one histogram per command code.
+     * May be shared between several ZK instances.
+     */
+    private final Map<Integer, LatencyHistogram> commands = new ConcurrentHashMap<>();
+    private final Map<Integer, LongAdder> timeouts = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> retries = new ConcurrentHashMap<>();
+    private final Map<String, DecodeStats> decoded = new ConcurrentHashMap<>();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+
+    public static class DecodeStats {
+        private final LongAdder records = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        public long getRecords() {
+            return records.sum();
+        }
+
+        public double getRecordsPerSecond() {
+            long n = nanos.sum();
+            return n == 0 ? 0 : records.sum() * 1_000_000_000.0 / n;
+        }
+    }
+
+    @Override
+    public void commandCompleted(int command, long nanos, boolean ok) {
+        commands.computeIfAbsent(command, c -> new LatencyHistogram()).record(nanos, ok);
+    }
+
+    @Override
+    public void bytesSent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    @Override
+    public void bytesReceived(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    @Override
+    public void retry(String operation) {
+        retries.computeIfAbsent(operation, o -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void timeout(int command) {
+        timeouts.computeIfAbsent(command, c -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void recordsDecoded(String table, long records, long nanos) {
+        DecodeStats stats = decoded.computeIfAbsent(table, t -> new DecodeStats());
+        stats.records.add(records);
+        stats.nanos.add(nanos);
+    }
+
+    public LatencyHistogram getHistogram(int command) {
+        return commands.get(command);
+    }
+
+    public Map<Integer, LatencyHistogram> getHistograms() {
+        return Collections.unmodifiableMap(commands);
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    public long getRetries(String operation) {
+        LongAdder adder = retries.get(operation);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    public long getTimeouts(int command) {
+        LongAdder adder = timeouts.get(command);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    public DecodeStats getDecodeStats(String table) {
+        return decoded.get(table);
+    }
+
+    public void reset() {
+        commands.clear();
+        timeouts.clear();
+        retries.clear();
+        decoded.clear();
+        bytesSent.reset();
+        bytesReceived.reset();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("bytes sent %d, received %d%n", getBytesSent(), getBytesReceived()));
+        new TreeMap<>(commands).forEach((command, histogram) -> sb.append(String.format("%-20s %s%n",
+                DeviceConstants.commandName(command), histogram)));
+        new TreeMap<>(timeouts).forEach((command, n) -> sb.append(String.format("timeouts %-20s %d%n",
+                DeviceConstants.commandName(command), n.sum())));
+        new TreeMap<>(retries).forEach((operation, n) -> sb.append(String.format("retries %-21s %d%n",
+                operation, n.sum())));
+        new TreeMap<>(decoded).forEach((table, stats) -> sb.append(String.format("decoded %-21s %d (%.0f rec/s)%n",
+                table, stats.getRecords(), stats.getRecordsPerSecond())));
+        return sb.toString();
+    }
+}
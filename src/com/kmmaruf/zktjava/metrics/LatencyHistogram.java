@@ -0,0 +1,87 @@
+package com.kmmaruf.zktjava.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram {
+    /**
+     * Lock-free latency histogram with power-of-two microsecond buckets.
+     * Bucket i holds samples in [2^(i-1), 2^i) us, bucket 0 holds < 1 us.
+     */
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos, boolean ok) {
+        if (nanos < 0)
+            nanos = 0;
+        long micros = nanos / 1000;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.increment();
+        totalNanos.add(nanos);
+        if (!ok)
+            errors.increment();
+
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    public double getMeanMillis() {
+        long n = count.sum();
+        return n == 0 ? 0 : totalNanos.sum() / (double) n / 1_000_000.0;
+    }
+
+    /**
+     * Returns the upper bound of the bucket containing the given quantile.
+     *
+     * @param quantile between 0 and 1
+     * @return latency in milliseconds
+     */
+    public double getPercentileMillis(double quantile) {
+        long n = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(quantile * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min((1L << i), TimeUnit.NANOSECONDS.toMicros(getMaxNanos())) / 1000.0;
+            }
+        }
+        return getMaxNanos() / 1_000_000.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d err=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms", getCount(), getErrors(),
+                getMeanMillis(), getPercentileMillis(0.5), getPercentileMillis(0.99), getMaxNanos() / 1_000_000.0);
+    }
+}
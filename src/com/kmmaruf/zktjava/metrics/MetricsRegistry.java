@@ -0,0 +1,46 @@
+package com.kmmaruf.zktjava.metrics;
+
+public interface MetricsRegistry {
+    /**
+     * Receives measurements from a ZK session. Implementations are called on the
+     * hot path (once per packet) and must be cheap and thread safe.
+     */
+
+    void commandCompleted(int command, long nanos, boolean ok);
+
+    void bytesSent(long bytes);
+
+    void bytesReceived(long bytes);
+
+    void retry(String operation);
+
+    void timeout(int command);
+
+    void recordsDecoded(String table, long records, long nanos);
+
+    MetricsRegistry NOOP = new MetricsRegistry() {
+        @Override
+        public void commandCompleted(int command, long nanos, boolean ok) {
+        }
+
+        @Override
+        public void bytesSent(long bytes) {
+        }
+
+        @Override
+        public void bytesReceived(long bytes) {
+        }
+
+        @Override
+        public void retry(String operation) {
+        }
+
+        @Override
+        public void timeout(int command) {
+        }
+
+        @Override
+        public void recordsDecoded(String table, long records, long nanos) {
+        }
+    };
+}
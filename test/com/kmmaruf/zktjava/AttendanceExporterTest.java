@@ -0,0 +1,157 @@
+package com.kmmaruf.zktjava;
+
+import java.io.ByteArrayOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+
+public class AttendanceExporterTest {
+    /**
+     * Exporting the attendance log must give the same records as getAttendance
+     * for the 8, 16 and 40 byte layouts. The records come from a stub device on
+     * UDP localhost that answers every buffered read inline. CSV quoting and
+     * NDJSON escaping are checked through a buffer smaller than one line.
+     * Runs without a test framework: java com.kmmaruf.zktjava.AttendanceExporterTest
+     */
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+
+    public static void main(String[] args) throws Exception {
+        matchesGetAttendance(8);
+        matchesGetAttendance(16);
+        matchesGetAttendance(40);
+        quotingAndEscaping();
+        System.out.println("AttendanceExporterTest passed");
+    }
+
+    static void matchesGetAttendance(int recordSize) throws Exception {
+        LocalDateTime[] times = {
+                LocalDateTime.of(2024, 1, 1, 0, 0, 0),
+                LocalDateTime.of(2023, 12, 31, 23, 59, 59),
+                LocalDateTime.of(2025, 6, 15, 8, 30, 5) };
+        ByteBuffer table = ByteBuffer.allocate(4 + times.length * recordSize).order(ByteOrder.LITTLE_ENDIAN);
+        table.putInt(times.length * recordSize);
+        for (int i = 0; i < times.length; i++) {
+            ByteBuffer record = ByteBuffer.allocate(recordSize).order(ByteOrder.LITTLE_ENDIAN);
+            int uid = 10 + i;
+            if (recordSize == 8) {
+                record.putShort((short) uid).put((byte) i).putInt(packTime(times[i])).put((byte) (i + 1));
+            } else if (recordSize == 16) {
+                record.putInt(1000 + i).putInt(packTime(times[i])).put((byte) i).put((byte) (i + 1));
+            } else {
+                record.putShort((short) uid).put(("user" + i).getBytes(StandardCharsets.US_ASCII));
+                record.position(26);
+                record.put((byte) i).putInt(packTime(times[i])).put((byte) (i + 1));
+            }
+            table.put(record.array());
+        }
+
+        try (StubDevice device = new StubDevice(table.array(), times.length)) {
+            Base.ZK zk = new Base().new ZK("127.0.0.1", device.port(), 2, 0, true, true, false, "UTF-8");
+            zk.connect();
+            List<Attendance> expected = zk.getAttendance();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int written;
+            try (AttendanceExporter exporter = new AttendanceExporter(out, AttendanceExporter.Format.CSV)) {
+                written = zk.exportAttendance(exporter);
+            }
+            zk.disconnect();
+
+            String[] lines = out.toString(StandardCharsets.UTF_8).split("\n");
+            check(written == times.length && expected.size() == times.length, recordSize + " byte records counted");
+            check(lines[0].equals("device,uid,user_id,timestamp,status,punch"), "csv header");
+            for (int i = 0; i < times.length; i++) {
+                Attendance attendance = expected.get(i);
+                check(attendance.getTimestamp().equals(times[i]), recordSize + " byte getAttendance time " + i);
+                String line = lines[i + 1].substring(lines[i + 1].indexOf(',') + 1); // device is ip:port
+                String wanted = attendance.getUid() + "," + attendance.getUser_id() + ","
+                        + TIMESTAMP.format(times[i]) + "," + attendance.getStatus() + "," + attendance.getPunch();
+                check(line.equals(wanted), recordSize + " byte record " + i + ": " + line + " != " + wanted);
+            }
+        }
+    }
+
+    static void quotingAndEscaping() throws Exception {
+        int rawTime = packTime(LocalDateTime.of(2024, 2, 29, 12, 0, 0));
+        ByteArrayOutputStream csv = new ByteArrayOutputStream();
+        try (AttendanceExporter exporter = new AttendanceExporter(Channels.newChannel(csv),
+                AttendanceExporter.Format.CSV, 16)) {
+            exporter.setDevice("dev,1");
+            exporter.write(-5, "say \"hi\"", rawTime, 1, 255);
+        }
+        check(csv.toString(StandardCharsets.UTF_8).equals("device,uid,user_id,timestamp,status,punch\n"
+                + "\"dev,1\",-5,\"say \"\"hi\"\"\",2024-02-29T12:00:00,1,255\n"), "csv quoting: " + csv);
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        try (AttendanceExporter exporter = new AttendanceExporter(Channels.newChannel(json),
+                AttendanceExporter.Format.NDJSON, 16)) {
+            exporter.write(7, "a\\b\"c\t\u00e9", rawTime, 0, 0);
+        }
+        check(json.toString(StandardCharsets.UTF_8).equals("{\"device\":\"\",\"uid\":7,"
+                + "\"user_id\":\"a\\\\b\\\"c\\u0009\u00e9\",\"timestamp\":\"2024-02-29T12:00:00\",\"status\":0,\"punch\":0}\n"),
+                "ndjson escaping: " + json);
+    }
+
+    // Same packing as the device clock
+    private static int packTime(LocalDateTime t) {
+        return ((((t.getYear() - 2000) * 12 + t.getMonthValue() - 1) * 31 + t.getDayOfMonth() - 1) * 24 * 3600)
+                + t.getHour() * 3600 + t.getMinute() * 60 + t.getSecond();
+    }
+
+    // Answers sizes with no users and the given record count, buffered reads inline with the table
+    private static class StubDevice implements AutoCloseable {
+        private final DatagramSocket socket = new DatagramSocket(0);
+        private final Thread thread;
+
+        StubDevice(byte[] table, int records) throws Exception {
+            thread = new Thread(() -> {
+                byte[] buffer = new byte[2048];
+                try {
+                    while (true) {
+                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                        socket.receive(packet);
+                        ByteBuffer request = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+                        int command = request.getShort(0) & 0xFFFF;
+                        byte[] payload = new byte[0];
+                        int code = DeviceConstants.CMD_ACK_OK;
+                        if (command == DeviceConstants.CMD_GET_FREE_SIZES) {
+                            payload = ByteBuffer.allocate(80).order(ByteOrder.LITTLE_ENDIAN)
+                                    .putInt(8 * 4, records).array();
+                        } else if (command == DeviceConstants._CMD_PREPARE_BUFFER) {
+                            code = DeviceConstants.CMD_DATA;
+                            payload = table;
+                        }
+                        ByteBuffer reply = ByteBuffer.allocate(8 + payload.length).order(ByteOrder.LITTLE_ENDIAN);
+                        reply.putShort((short) code).putShort((short) 0).putShort((short) 1)
+                                .putShort(request.getShort(6)).put(payload);
+                        socket.send(new DatagramPacket(reply.array(), reply.limit(), packet.getSocketAddress()));
+                    }
+                } catch (Exception closed) {
+                    // socket closed
+                }
+            }, "stub-device");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int port() {
+            return socket.getLocalPort();
+        }
+
+        @Override
+        public void close() {
+            socket.close();
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
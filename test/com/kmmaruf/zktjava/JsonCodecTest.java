@@ -0,0 +1,105 @@
+package com.kmmaruf.zktjava;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+public class JsonCodecTest {
+    /**
+     * Users and templates written by ArrayWriter must read back unchanged,
+     * including names with quotes, backslashes and control characters, and
+     * input that uses \\u escapes the writer never produces.
+     * Runs without a test framework: java com.kmmaruf.zktjava.JsonCodecTest
+     */
+    public static void main(String[] args) throws Exception {
+        usersRoundTrip();
+        templatesRoundTrip();
+        unicodeEscapes();
+        System.out.println("JsonCodecTest passed");
+    }
+
+    static void usersRoundTrip() throws Exception {
+        List<User> users = List.of(
+                new User(1, "plain", 0, "", "1", "1", 0),
+                new User(2, "quote \" and \\ back", 14, "p\"w", "", "2", 123456789L),
+                new User(3, "tab\tnew\nline\u0001", 0, null, "1", "x\ry", 0),
+                new User(4, "\u00e9t\u00e9 \u4e2d", 0, "", "1", "4", 1));
+        StringWriter out = new StringWriter();
+        try (JsonCodec.ArrayWriter writer = new JsonCodec.ArrayWriter(out)) {
+            for (User user : users) {
+                writer.write(user);
+            }
+        }
+
+        List<User> read = new ArrayList<>();
+        int count = JsonCodec.readUsers(new StringReader(out.toString()), read::add);
+        check(count == users.size() && read.size() == users.size(), "all users read");
+        for (int i = 0; i < users.size(); i++) {
+            check(same(users.get(i), read.get(i)), "user " + i + " round trip: " + out);
+        }
+
+        read.clear();
+        check(JsonCodec.readUsers(new StringReader(" [ ] "), read::add) == 0, "empty array");
+    }
+
+    static void templatesRoundTrip() throws Exception {
+        byte[] big = new byte[6000]; // hex is longer than the writer buffer
+        for (int i = 0; i < big.length; i++) {
+            big[i] = (byte) (i * 31);
+        }
+        List<Finger> fingers = List.of(
+                new Finger(1, 0, 1, new byte[] { 0, 1, (byte) 0xab, (byte) 0xff }),
+                new Finger(2, 9, 3, big));
+        StringWriter out = new StringWriter();
+        try (JsonCodec.ArrayWriter writer = new JsonCodec.ArrayWriter(out)) {
+            for (Finger finger : fingers) {
+                writer.write(finger);
+            }
+        }
+
+        List<Finger> read = new ArrayList<>();
+        JsonCodec.readTemplates(new StringReader(out.toString()), read::add);
+        check(read.size() == fingers.size(), "all templates read");
+        for (int i = 0; i < fingers.size(); i++) {
+            Finger expected = fingers.get(i);
+            Finger actual = read.get(i);
+            check(actual.getUid() == expected.getUid() && actual.fid == expected.fid
+                    && actual.getValid() == expected.getValid()
+                    && Arrays.equals(actual.getTemplate(), expected.getTemplate()), "template " + i + " round trip");
+        }
+    }
+
+    // Escapes written by other tools, keys in another order and unknown keys
+    static void unicodeEscapes() throws Exception {
+        String json = "[{\"user_id\":\"7\",\"name\":\"caf\\u00E9 \\u4e2d\\/\\\"x\\\"\",\"extra\":true,"
+                + "\"uid\":7,\"privilege\":0,\"password\":null,\"group_id\":\"\\u0031\",\"card\":-1}]";
+        List<User> read = new ArrayList<>();
+        JsonCodec.readUsers(new StringReader(json), read::add);
+        check(read.size() == 1, "one user");
+        User user = read.get(0);
+        check(user.name.equals("caf\u00e9 \u4e2d/\"x\""), "escaped name: " + user.name);
+        check(user.groupId.equals("1") && user.password.isEmpty() && user.card == -1 && user.uid == 7, "other fields");
+
+        try {
+            JsonCodec.readUsers(new StringReader("[{\"name\":\"\\u12G4\"}]"), read::add);
+            throw new AssertionError("invalid escape accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static boolean same(User a, User b) {
+        return a.uid == b.uid && a.privilege == b.privilege && a.card == b.card
+                && Objects.equals(a.name, b.name) && Objects.equals(a.password, b.password)
+                && Objects.equals(a.groupId, b.groupId) && Objects.equals(a.userId, b.userId);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.kmmaruf.zktjava;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+public class ReadCheckpointTest {
+    /**
+     * Resuming after a torn ranges entry must cut the partial entry off, so
+     * entries written later stay aligned and a second resume reads them back.
+     * Runs without a test framework: java com.kmmaruf.zktjava.ReadCheckpointTest
+     */
+    public static void main(String[] args) throws Exception {
+        resumeTwiceAfterTornEntry();
+        System.out.println("ReadCheckpointTest passed");
+    }
+
+    static void resumeTwiceAfterTornEntry() throws Exception {
+        Path dir = Files.createTempDirectory("rcp");
+        Path file = dir.resolve("read.part");
+        Path rangesFile = dir.resolve("read.part.ranges");
+        byte[] expected = new byte[300];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = (byte) i;
+        }
+
+        ReadCheckpoint checkpoint = new ReadCheckpoint(file);
+        checkpoint.begin(1, 2, 0, 300);
+        checkpoint.complete(0, Arrays.copyOfRange(expected, 0, 100));
+        checkpoint.close();
+
+        // a crash in the middle of appending the next entry
+        Files.write(rangesFile, new byte[] { 100, 0, 0 }, StandardOpenOption.APPEND);
+
+        checkpoint = new ReadCheckpoint(file);
+        checkpoint.begin(1, 2, 0, 300);
+        check(checkpoint.isDone(0, 100), "first range survives the torn entry");
+        check(!checkpoint.isDone(100, 100), "torn entry is not a completed range");
+        checkpoint.complete(100, Arrays.copyOfRange(expected, 100, 200));
+        checkpoint.close();
+        check(Files.size(rangesFile) == 20 + 2 * 8, "ranges file is whole entries only");
+
+        checkpoint = new ReadCheckpoint(file);
+        checkpoint.begin(1, 2, 0, 300);
+        check(checkpoint.isDone(0, 200), "both ranges read back on the second resume");
+        check(checkpoint.getCompletedBytes() == 200, "no garbage ranges");
+        checkpoint.complete(200, Arrays.copyOfRange(expected, 200, 300));
+        check(Arrays.equals(checkpoint.readAll(), expected), "data matches");
+
+        ByteBuffer saved = ByteBuffer.wrap(Files.readAllBytes(rangesFile)).order(ByteOrder.LITTLE_ENDIAN);
+        check(saved.getInt(20 + 16) == 200 && saved.getInt(20 + 20) == 100, "last entry is aligned");
+        checkpoint.delete();
+        Files.delete(dir);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.kmmaruf.zktjava;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class RecordDecoderTest {
+    /**
+     * Records split across chunk boundaries, including inside the size prefix
+     * and inside a record header, must decode to the same records as one whole
+     * buffer. Runs without a test framework: java com.kmmaruf.zktjava.RecordDecoderTest
+     */
+    public static void main(String[] args) throws Exception {
+        fixedRecordsAtEverySplit();
+        variableRecordsInSmallChunks();
+        stopsAtTotalSize();
+        System.out.println("RecordDecoderTest passed");
+    }
+
+    // Table of 8 byte records tagged with their index
+    static void fixedRecordsAtEverySplit() throws Exception {
+        byte[] table = table(5, i -> 8);
+        for (int split = 0; split <= table.length; split++) {
+            Collecting decoder = new Collecting(4, header -> 8);
+            decoder.accept(ByteBuffer.wrap(table, 0, split));
+            decoder.accept(ByteBuffer.wrap(table, split, table.length - split));
+            check(decoder.getTotalSize() == 5 * 8, "total size at split " + split);
+            checkRecords(decoder, table, 5, "split " + split);
+        }
+    }
+
+    // Record length is read from a 2 byte header; chunks smaller than a header
+    static void variableRecordsInSmallChunks() throws Exception {
+        int[] lengths = { 6, 70, 12, 100, 9 }; // two records outgrow the 64 byte carry
+        byte[] table = table(lengths.length, i -> lengths[i]);
+        for (int chunk = 1; chunk <= 11; chunk++) {
+            Collecting decoder = new Collecting(2, header -> header.getShort(0) & 0xffff);
+            for (int offset = 0; offset < table.length; offset += chunk) {
+                decoder.accept(ByteBuffer.wrap(table, offset, Math.min(chunk, table.length - offset)));
+            }
+            checkRecords(decoder, table, lengths.length, "chunk " + chunk);
+            check(decoder.getBytes() == table.length, "all bytes counted at chunk " + chunk);
+        }
+    }
+
+    // Padding after totalSize bytes of records is not decoded when bounded
+    static void stopsAtTotalSize() throws Exception {
+        byte[] table = Arrays.copyOf(table(3, i -> 8), 4 + 3 * 8 + 16);
+        Collecting decoder = new Collecting(4, header -> 8);
+        decoder.bounded = true;
+        for (int offset = 0; offset < table.length; offset += 5) {
+            decoder.accept(ByteBuffer.wrap(table, offset, Math.min(5, table.length - offset)));
+        }
+        check(decoder.getRecords() == 3, "padding is not a record");
+    }
+
+    interface Length {
+        int of(int index);
+    }
+
+    // Size prefix, then records whose first 2 bytes are the record length and
+    // whose remaining bytes are the record index
+    private static byte[] table(int records, Length length) {
+        int size = 0;
+        for (int i = 0; i < records; i++) {
+            size += length.of(i);
+        }
+        ByteBuffer table = ByteBuffer.allocate(4 + size).order(ByteOrder.LITTLE_ENDIAN);
+        table.putInt(size);
+        for (int i = 0; i < records; i++) {
+            int n = length.of(i);
+            table.putShort((short) n);
+            for (int j = 2; j < n; j++) {
+                table.put((byte) i);
+            }
+        }
+        return table.array();
+    }
+
+    private static void checkRecords(Collecting decoder, byte[] table, int records, String where) {
+        check(decoder.records.size() == records, records + " records at " + where + ", got " + decoder.records.size());
+        int offset = 4;
+        for (int i = 0; i < records; i++) {
+            byte[] record = decoder.records.get(i);
+            check(Arrays.equals(record, Arrays.copyOfRange(table, offset, offset + record.length)),
+                    "record " + i + " matches at " + where);
+            offset += record.length;
+        }
+        check(offset == table.length, "records cover the table at " + where);
+    }
+
+    private static class Collecting extends RecordDecoder {
+        interface Header {
+            int length(ByteBuffer header);
+        }
+
+        final List<byte[]> records = new ArrayList<>();
+        final int headerLength;
+        final Header header;
+        boolean bounded = false;
+
+        Collecting(int headerLength, Header header) {
+            this.headerLength = headerLength;
+            this.header = header;
+        }
+
+        @Override
+        protected int headerLength() {
+            return headerLength;
+        }
+
+        @Override
+        protected int recordLength(ByteBuffer header) {
+            return this.header.length(header);
+        }
+
+        @Override
+        protected void record(ByteBuffer record) {
+            byte[] copy = new byte[record.remaining()];
+            record.get(copy);
+            records.add(copy);
+        }
+
+        @Override
+        protected boolean boundedByTotalSize() {
+            return bounded;
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.kmmaruf.zktjava;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+public class TcpFrameReaderTest {
+    /**
+     * A socket timeout partway through the 8 byte top must leave the bytes
+     * already received buffered, so the retried nextFrame() reads the same
+     * frame. Frames split and coalesced across reads, wrapping around a small
+     * ring, must come out unchanged.
+     * Runs without a test framework: java com.kmmaruf.zktjava.TcpFrameReaderTest
+     */
+    public static void main(String[] args) throws Exception {
+        timeoutInsideTop();
+        coalescedFramesWrapTheRing();
+        System.out.println("TcpFrameReaderTest passed");
+    }
+
+    static void timeoutInsideTop() throws Exception {
+        byte[] first = frame(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 });
+        byte[] second = frame(new byte[] { 11, 12, 13, 14, 15, 16, 17, 18 });
+        Scripted in = new Scripted();
+        in.data(Arrays.copyOfRange(first, 0, 3));
+        in.timeout();
+        in.data(Arrays.copyOfRange(first, 3, 6));
+        in.timeout();
+        in.data(Arrays.copyOfRange(first, 6, first.length));
+        in.data(second);
+
+        TcpFrameReader reader = new TcpFrameReader(in, 64);
+        try {
+            reader.nextFrame();
+            throw new AssertionError("first read should time out");
+        } catch (SocketTimeoutException expected) {
+        }
+        check(reader.buffered() == 3, "partial top stays buffered");
+        try {
+            reader.nextFrame();
+            throw new AssertionError("second read should time out");
+        } catch (SocketTimeoutException expected) {
+        }
+        check(reader.buffered() == 6, "partial top keeps growing");
+
+        check(reader.nextFrame() == 10, "length of the interrupted frame");
+        byte[] packet = new byte[10];
+        reader.readFully(packet, 0, packet.length);
+        check(Arrays.equals(packet, Arrays.copyOfRange(first, 8, first.length)), "interrupted frame payload");
+
+        check(reader.nextFrame() == 8, "following frame still aligned");
+        packet = new byte[8];
+        reader.readFully(packet, 0, packet.length);
+        check(Arrays.equals(packet, Arrays.copyOfRange(second, 8, second.length)), "following frame payload");
+        check(reader.getBytesRead() == first.length + second.length, "every byte read once");
+    }
+
+    // Several frames per socket read, chopped at odd sizes into a 16 byte ring
+    static void coalescedFramesWrapTheRing() throws Exception {
+        ByteBuffer stream = ByteBuffer.allocate(1024);
+        byte[][] packets = new byte[12][];
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = new byte[1 + i % 7];
+            Arrays.fill(packets[i], (byte) i);
+            stream.put(frame(packets[i]));
+        }
+        byte[] all = Arrays.copyOf(stream.array(), stream.position());
+        Scripted in = new Scripted();
+        for (int offset = 0; offset < all.length; offset += 13) {
+            in.data(Arrays.copyOfRange(all, offset, Math.min(all.length, offset + 13)));
+        }
+
+        TcpFrameReader reader = new TcpFrameReader(in, 16);
+        for (int i = 0; i < packets.length; i++) {
+            int length = reader.nextFrame();
+            check(length == packets[i].length, "length of frame " + i);
+            byte[] packet = new byte[length];
+            reader.readFully(packet, 0, length);
+            check(Arrays.equals(packet, packets[i]), "payload of frame " + i);
+            check(reader.frameRemaining() == 0, "frame " + i + " fully read");
+        }
+    }
+
+    private static byte[] frame(byte[] packet) {
+        ByteBuffer frame = ByteBuffer.allocate(8 + packet.length).order(ByteOrder.LITTLE_ENDIAN);
+        frame.putShort((short) DeviceConstants.MACHINE_PREPARE_DATA_1);
+        frame.putShort((short) DeviceConstants.MACHINE_PREPARE_DATA_2);
+        frame.putInt(packet.length);
+        frame.put(packet);
+        return frame.array();
+    }
+
+    // Returns each scripted step from its own read calls; timeout() steps throw
+    private static class Scripted extends InputStream {
+        private final ArrayDeque<byte[]> steps = new ArrayDeque<>();
+        private static final byte[] TIMEOUT = new byte[0];
+        private byte[] current;
+        private int position;
+
+        void data(byte[] bytes) {
+            steps.add(bytes);
+        }
+
+        void timeout() {
+            steps.add(TIMEOUT);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (current == null || position == current.length) {
+                current = steps.poll();
+                position = 0;
+                if (current == null) {
+                    return -1;
+                }
+                if (current == TIMEOUT) {
+                    current = null;
+                    throw new SocketTimeoutException("scripted timeout");
+                }
+            }
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, n);
+            position += n;
+            return n;
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
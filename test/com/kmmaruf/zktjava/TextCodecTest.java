@@ -0,0 +1,59 @@
+package com.kmmaruf.zktjava;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+public class TextCodecTest {
+    /**
+     * Text encoded into a fixed width field must decode back to the same
+     * string, through both the ASCII fast path and the charset path, for
+     * single byte, multi byte and non ASCII compatible charsets.
+     * Runs without a test framework: java com.kmmaruf.zktjava.TextCodecTest
+     */
+    public static void main(String[] args) throws Exception {
+        roundTrip("UTF-8", "1234", "Jos\u00e9 \u00c5ngstr\u00f6m", "\u4e2d\u6587\u540d");
+        roundTrip("windows-1256", "Ahmed", "\u0645\u062d\u0645\u062f");
+        roundTrip("GBK", "Li", "\u674e\u56db");
+        roundTrip("UTF-16LE", "Ahmed", "\u4e2d\u6587");
+        fixedWidth();
+        System.out.println("TextCodecTest passed");
+    }
+
+    static void roundTrip(String encoding, String... values) {
+        TextCodec codec = new TextCodec(encoding);
+        for (String value : values) {
+            byte[] encoded = codec.encode(value);
+            check(Arrays.equals(encoded, value.getBytes(Charset.forName(encoding))), encoding + " encodes " + value);
+            check(codec.decode(encoded).equals(value), encoding + " decodes " + value);
+
+            byte[] field = new byte[48];
+            Arrays.fill(field, (byte) 0x55);
+            codec.encode(value, field, 8, 32);
+            check(field[7] == 0x55 && field[40] == 0x55, encoding + " stays inside the field");
+            check(codec.decode(field, 8, 32).equals(value), encoding + " field round trip of " + value);
+        }
+        check(codec.decode(new byte[8]).isEmpty(), encoding + " empty field");
+        check(codec.encode(null).length == 0, encoding + " null value");
+    }
+
+    static void fixedWidth() {
+        TextCodec codec = new TextCodec("UTF-8");
+        byte[] field = new byte[8];
+        codec.encode("longer than eight", field, 0, 8);
+        check(codec.decode(field).equals("longer t"), "truncated to the field");
+
+        Arrays.fill(field, (byte) 'x');
+        codec.encode("ab", field, 0, 8);
+        check(Arrays.equals(field, new byte[] { 'a', 'b', 0, 0, 0, 0, 0, 0 }), "padded with NULs");
+
+        byte[] garbage = { 'o', 'k', 0, (byte) 0xff, 'z' };
+        check(codec.decode(garbage).equals("ok"), "stops at the first NUL");
+        check(codec.decode(new byte[] { 'a', (byte) 0xff, 'b' }).equals("a\ufffdb"), "malformed bytes replaced");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}